@@ -0,0 +1,107 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Assembly of the HAPI object model: whole bundles, the typed prescription they are
+ * built from, and the participant resources on their own.
+ * 
+ * @author Damian Murphy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+
+    private static final int PRESCRIPTIONS = 1024;
+    
+    private MedicationRequestBundleBuilder builder = null;
+    private String[] ids = null;
+    private ArrayList<List<String>> prescriptions = null;
+    private ArrayList<List<List<String>>> items = null;
+    private Participant[] authors = null;
+    private int next = 0;
+    
+    @Setup
+    public void setup() 
+            throws Exception
+    {
+        builder = new MedicationRequestBundleBuilder(null, null, "-");
+        EMUgenerator g = new EMUgenerator(1);
+        ids = new String[PRESCRIPTIONS];
+        prescriptions = new ArrayList<>();
+        items = new ArrayList<>();
+        authors = new Participant[PRESCRIPTIONS];
+        for (int i = 0; i < PRESCRIPTIONS; i++) {
+            EMUgenerator.Prescription p = g.next();
+            ids[i] = p.id;
+            prescriptions.add(EMUdata.readLine(p.row));
+            ArrayList<List<String>> itemset = new ArrayList<>();
+            for (String item : p.items) {
+                itemset.add(EMUdata.readLine(item));
+            }
+            items.add(itemset);
+            authors[i] = new Participant(EMUdefinitions.AUTHORROLEPROFILE, prescriptions.get(i));
+        }
+    }
+    
+    private int nextIndex() {
+        int i = next;
+        next = (next + 1) % PRESCRIPTIONS;
+        return i;
+    }
+    
+    @Benchmark
+    public Bundle makeBundle() 
+            throws Exception
+    {
+        int i = nextIndex();
+        return builder.makeBundle(ids[i], prescriptions.get(i), items.get(i));
+    }
+    
+    @Benchmark
+    public Prescription parsePrescription() 
+            throws Exception
+    {
+        int i = nextIndex();
+        return new Prescription(ids[i], prescriptions.get(i), items.get(i));
+    }
+    
+    @Benchmark
+    public ParticipantMaker makeParticipant() {
+        ParticipantMaker p = new ParticipantMaker();
+        p.make(authors[nextIndex()]);
+        return p;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates synthetic EMU prescription and line item rows, so that the pipeline can
+ * be exercised at any size without real patient data. Output is repeatable for a
+ * given seed. Values are drawn from small pools, as in real extracts, where a few
+ * prescribers and organisations author most of the prescriptions.
+ * 
+ * Can be run directly to write a pair of files:
+ * 
+ * EMUgenerator prescriptionsfile itemsfile count [seed]
+ * 
+ * @author Damian Murphy
+ */
+class EMUgenerator {
+    
+    static final int PRESCRIPTIONFIELDS = EMUdefinitions.PRESCRIPTIONCLINICALSTATEMENTID + 1;
+    static final int ITEMFIELDS = EMUdefinitions.LINEITEMID + 1;
+    
+    private static final String[] GIVEN = {"John", "Mary", "Amir", "Siobhan", "Wei", "Chloe", "Oluwaseun", "Ren__eGRAVE__e",
+        "Zo__LATINaDIAERESIS__", "Fran__cCEDILLA__ois"};
+    private static final String[] SURNAMES = {"Smith", "Jones", "Patel", "O__RH_SINGLE__Brien", "Nowak", "Williams", "Kaur",
+        "M__uDIAERESIS__ller", "Evans", "Taylor"};
+    private static final String[] TITLES = {"Mr", "Mrs", "Ms", "Miss", "Dr", ""};
+    private static final String[] STREETS = {"High Street", "Station Road", "Church Lane", "Park Avenue", "Mill Road"};
+    private static final String[] TOWNS = {"Leeds", "Bradford", "Harrogate", "Wakefield", "York"};
+    private static final String[] DRUGS = {"Paracetamol 500mg tablets", "Amoxicillin 250mg capsules", 
+        "Salbutamol 100micrograms/dose inhaler", "Atorvastatin 20mg tablets", "Metformin 500mg tablets"};
+    private static final String[] DRUGCODES = {"39720311000001101", "39732311000001104", "39113611000001102", 
+        "39695211000001102", "39108211000001105"};
+    private static final String[] DOSAGE = {"Take one tablet three times a day", "Two puffs when required", 
+        "One at night", "Take one capsule every eight hours", ""};
+    private static final String[] TREATMENT = {"0001", "0002", "0003"};
+    
+    private static final int PRESCRIBERS = 2000;
+    private static final int ORGANISATIONS = 300;
+    private static final int PHARMACIES = 500;
+    
+    private final Random random;
+    private int sequence = 0;
+    
+    EMUgenerator(long seed) {
+        random = new Random(seed);
+    }
+    
+    /**
+     * A prescription row and its line item rows, as tab-delimited lines.
+     */
+    static class Prescription {
+        final String id;
+        final String row;
+        final ArrayList<String> items = new ArrayList<>();
+        
+        private Prescription(String i, String r) {
+            id = i;
+            row = r;
+        }
+    }
+    
+    Prescription next() {
+        int n = sequence++;
+        String id = String.format("%06X-%s%05d-%05d%c", random.nextInt(0xffffff), "A", random.nextInt(100000), 
+                n % 100000, (char)('A' + random.nextInt(26)));
+        String[] f = new String[PRESCRIPTIONFIELDS];
+        Arrays.fill(f, "");
+        f[EMUdefinitions.ID] = id;
+        f[EMUdefinitions.URGENT] = "0";
+        f[EMUdefinitions.PATIENTID] = String.format("9%09d", random.nextInt(1000000000));
+        f[EMUdefinitions.PATIENTADDRESSLINE1] = (1 + random.nextInt(200)) + " " + pick(STREETS);
+        f[EMUdefinitions.PATIENTADDRESSLINE2] = pick(TOWNS);
+        f[EMUdefinitions.PATIENTADDRESSPOSTCODE] = postcode();
+        f[EMUdefinitions.PATIENTNAMETITLE] = pick(TITLES);
+        f[EMUdefinitions.PATIENTGIVENNAME1] = pick(GIVEN);
+        f[EMUdefinitions.PATIENTGIVENNAME2] = random.nextBoolean() ? pick(GIVEN) : "";
+        f[EMUdefinitions.PATIENTSURNAME] = pick(SURNAMES);
+        f[EMUdefinitions.PATIENTGENDER] = Integer.toString(random.nextInt(3));
+        f[EMUdefinitions.PATIENTBIRTHTIME] = String.format("%04d%02d%02d", 1920 + random.nextInt(100), 
+                1 + random.nextInt(12), 1 + random.nextInt(28));
+        f[EMUdefinitions.PATIENTPRIMARYCAREPROVIDESDSID] = String.format("B8%04d", random.nextInt(ORGANISATIONS));
+        f[EMUdefinitions.PRESCRIPTIONTREATMENTTYPE] = pick(TREATMENT);
+        f[EMUdefinitions.PRESCRIPTIONTYPE] = "0001";
+        f[EMUdefinitions.NOMINATEDPHARMACYID] = random.nextInt(3) == 0 ? "" : String.format("F%04d", random.nextInt(PHARMACIES));
+        f[EMUdefinitions.DISPENSINGSITEPREFERENCE] = "P1";
+        String time = String.format("2020%02d%02d%02d%02d%02d", 1 + random.nextInt(12), 1 + random.nextInt(28), 
+                8 + random.nextInt(10), random.nextInt(60), random.nextInt(60));
+        int prescriber = random.nextInt(PRESCRIBERS);
+        participant(f, EMUdefinitions.AUTHORROLEPROFILE, prescriber, time);
+        participant(f, EMUdefinitions.RESPONSIBLEPARTYROLEPROFILE, prescriber, time);
+        participant(f, EMUdefinitions.LEGALAUTHENTICATORROLEPROFILE, prescriber, time);
+        f[EMUdefinitions.PRESCRIPTIONCLINICALSTATEMENTID] = uuid();
+        Prescription p = new Prescription(id, String.join("\t", f));
+        int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            p.items.add(item(id));
+        }
+        return p;
+    }
+    
+    private void participant(String[] f, int b, int prescriber, String time) {
+        int org = prescriber % ORGANISATIONS;
+        f[b + EMUdefinitions.ROLEPROFILE] = String.format("2000%08d", prescriber);
+        f[b + EMUdefinitions.JOBCODE] = "R8000";
+        f[b + EMUdefinitions.SDSUSERID] = String.format("6000%08d", prescriber);
+        f[b + EMUdefinitions.PERSONNAME] = "Dr " + GIVEN[prescriber % GIVEN.length] + " " + SURNAMES[(prescriber / GIVEN.length) % SURNAMES.length];
+        f[b + EMUdefinitions.SDSORGANISATIONID] = String.format("B8%04d", org);
+        f[b + EMUdefinitions.ORGANISATIONNAME] = TOWNS[org % TOWNS.length] + " Medical Practice " + org;
+        f[b + EMUdefinitions.ORGANISATIONTYPE] = "001";
+        f[b + EMUdefinitions.ORGANISATIONTELECOM] = String.format("tel:0113%07d", org);
+        f[b + EMUdefinitions.ORGANISATIONADDRESSLINE1] = (1 + org) + " " + STREETS[org % STREETS.length];
+        f[b + EMUdefinitions.ORGANISATIONADDRESSLINE2] = TOWNS[org % TOWNS.length];
+        f[b + EMUdefinitions.ORGANISATIONPOSTCODE] = String.format("LS%d %dAB", 1 + (org % 20), org % 10);
+        f[b + EMUdefinitions.PCTORGANISATIONSDSID] = String.format("5N%d", org % 10);
+        f[b + EMUdefinitions.PARTICIPATIONTIME] = time;
+    }
+    
+    private String item(String id) {
+        String[] f = new String[ITEMFIELDS];
+        Arrays.fill(f, "");
+        int d = random.nextInt(DRUGS.length);
+        f[EMUdefinitions.PRESCRIPTIONID] = id;
+        f[EMUdefinitions.SUBSTANCECODE] = DRUGCODES[d];
+        f[EMUdefinitions.DISPLAYNAME] = DRUGS[d];
+        f[EMUdefinitions.QUANTITYTEXT] = "tablet";
+        f[EMUdefinitions.QUANTITYCODE] = "428673006";
+        f[EMUdefinitions.QUANTITYCOUNT] = Integer.toString(7 * (1 + random.nextInt(8)));
+        f[EMUdefinitions.DOSAGEINTRUCTIONS] = pick(DOSAGE);
+        f[EMUdefinitions.ADDITIONALINSTRUCTIONS] = random.nextInt(4) == 0 ? "Take with food" : "";
+        f[EMUdefinitions.LINEITEMID] = uuid();
+        return String.join("\t", f);
+    }
+    
+    private String pick(String[] a) {
+        return a[random.nextInt(a.length)];
+    }
+    
+    private String postcode() {
+        return String.format("%c%c%d %d%c%c", (char)('A' + random.nextInt(26)), (char)('A' + random.nextInt(26)), 
+                1 + random.nextInt(20), random.nextInt(10), (char)('A' + random.nextInt(26)), (char)('A' + random.nextInt(26)));
+    }
+    
+    private String uuid() {
+        return String.format("%08X-%04X-%04X-%04X-%012X", random.nextInt(), random.nextInt(0x10000), random.nextInt(0x10000),
+                random.nextInt(0x10000), random.nextLong() & 0xffffffffffffL);
+    }
+    
+    public static void main(String[] args) 
+            throws Exception
+    {
+        if (args.length < 3) {
+            System.err.println("Usage: EMUgenerator prescriptionsfile itemsfile count [seed]");
+            return;
+        }
+        int count = Integer.parseInt(args[2]);
+        EMUgenerator g = new EMUgenerator((args.length > 3) ? Long.parseLong(args[3]) : 1);
+        try (BufferedWriter p = new BufferedWriter(new FileWriter(args[0])); 
+                BufferedWriter i = new BufferedWriter(new FileWriter(args[1]))) {
+            for (int n = 0; n < count; n++) {
+                Prescription rx = g.next();
+                p.write(rx.row);
+                p.newLine();
+                for (String item : rx.items) {
+                    i.write(item);
+                    i.newLine();
+                }
+            }
+        }
+    }
+}
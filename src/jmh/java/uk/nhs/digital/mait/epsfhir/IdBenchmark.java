@@ -0,0 +1,62 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.nhs.digital.mait.fhir.util.IdGenerator;
+
+/**
+ * Resource id generation with each strategy, on several threads at once since
+ * contention is what distinguishes them.
+ * 
+ * @author Damian Murphy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class IdBenchmark {
+
+    @Param({"secure", "fast", "seeded"})
+    public String strategy;
+    
+    private IdGenerator ids = null;
+    
+    @Setup
+    public void setup() {
+        ids = IdGenerator.forName(strategy, 1);
+    }
+    
+    @Benchmark
+    public String makeId() {
+        return ids.makeId();
+    }
+}
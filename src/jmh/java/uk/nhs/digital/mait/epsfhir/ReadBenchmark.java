@@ -0,0 +1,79 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.nhs.digital.mait.fhir.util.UTF8CharacterSubstituter;
+
+/**
+ * Input side of the pipeline: splitting EMU rows into fields, and the tagged
+ * character substitution applied to each line.
+ * 
+ * @author Damian Murphy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+    private static final int ROWS = 1024;
+    
+    private String[] rows = null;
+    private int next = 0;
+    
+    @Setup
+    public void setup() {
+        EMUgenerator g = new EMUgenerator(1);
+        rows = new String[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = g.next().row;
+        }
+    }
+    
+    private String nextRow() {
+        String r = rows[next];
+        next = (next + 1) % ROWS;
+        return r;
+    }
+    
+    @Benchmark
+    public ArrayList<String> readLine() 
+            throws Exception
+    {
+        return EMUdata.readLine(nextRow());
+    }
+    
+    @Benchmark
+    public String doSubstitutions() 
+            throws Exception
+    {
+        return UTF8CharacterSubstituter.doSubstitutions(nextRow());
+    }
+}
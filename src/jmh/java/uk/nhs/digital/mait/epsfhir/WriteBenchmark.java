@@ -0,0 +1,126 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.nhs.digital.mait.fhir.util.FhirHelper;
+import uk.nhs.digital.mait.fhir.util.ParserPool;
+
+/**
+ * Serialisation and writing of finished bundles, in each output format, and the
+ * direct serialiser which goes straight from the Prescription to the output.
+ * 
+ * @author Damian Murphy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    private static final int BUNDLES = 256;
+    
+    @Param({"json", "xml"})
+    public String format;
+    
+    private ParserPool parsers = null;
+    private File directory = null;
+    private String[] ids = null;
+    private ArrayList<Bundle> bundles = null;
+    private ArrayList<Prescription> prescriptions = null;
+    private DirectBundleSerialiser direct = null;
+    private int next = 0;
+    
+    @Setup
+    public void setup() 
+            throws Exception
+    {
+        parsers = new ParserPool(FhirContext.forR4(), format.contentEquals("xml"), true);
+        directory = Files.createTempDirectory("epsfhirbench").toFile();
+        MedicationRequestBundleBuilder builder = new MedicationRequestBundleBuilder(null, null, "-");
+        EMUgenerator g = new EMUgenerator(1);
+        ids = new String[BUNDLES];
+        bundles = new ArrayList<>();
+        prescriptions = new ArrayList<>();
+        direct = new DirectBundleSerialiser("12456789012", "DJM", "https://mait.digital.nhs.uk/");
+        for (int i = 0; i < BUNDLES; i++) {
+            EMUgenerator.Prescription p = g.next();
+            ArrayList<List<String>> itemset = new ArrayList<>();
+            for (String item : p.items) {
+                itemset.add(EMUdata.readLine(item));
+            }
+            ids[i] = p.id;
+            prescriptions.add(new Prescription(p.id, EMUdata.readLine(p.row), itemset));
+            bundles.add(builder.makeBundle(p.id, prescriptions.get(i)));
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+    
+    @Benchmark
+    public void write() 
+            throws Exception
+    {
+        int i = next;
+        next = (next + 1) % BUNDLES;
+        FhirHelper.write(ids[i], directory.getAbsolutePath(), bundles.get(i), parsers, false);
+    }
+    
+    @Benchmark
+    public byte[] encode() 
+            throws Exception
+    {
+        int i = next;
+        next = (next + 1) % BUNDLES;
+        return parsers.encode(bundles.get(i));
+    }
+    
+    @Benchmark
+    public byte[] directEncode() {
+        int i = next;
+        next = (next + 1) % BUNDLES;
+        return direct.encode(prescriptions.get(i), parsers);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import uk.nhs.digital.mait.fhir.util.ParserPool;
+import uk.nhs.digital.mait.fhir.util.StreamBundleSink;
+
+/**
+ * Resident server mode. Rather than a JVM launch per extract, EMU rows are POSTed
+ * to /bundles and the bundles streamed back in the response, so the FhirContext,
+ * parsers and prescriber cache are made once and stay warm between requests.
+ * 
+ * The request body is the prescription rows, a blank line, then the line item rows,
+ * each as they appear in the EMU files. Prescriptions are joined to their items as
+ * EMUdata does. The response is NDJSON for "ndjson" output, otherwise each bundle
+ * is preceded by its id on a line by itself, as for standard output. The number of
+ * prescriptions in the request is given in the X-Prescriptions response header:
+ * any which fail are reported on standard error and left out of the response.
+ * 
+ * Requests are served on a fixed pool of threads with a bounded queue. When the
+ * queue is full the next request is run by the thread accepting connections, so no
+ * more are accepted until one finishes.
+ * 
+ * There is no authentication, so by default the server only listens on the loopback
+ * address. Set the address property to listen on another interface.
+ * 
+ * @author Damian Murphy
+ */
+public class BundleServer {
+
+    private static final String PORT = "uk.nhs.digital.mait.epsfhir.server.port";
+    private static final String ADDRESS = "uk.nhs.digital.mait.epsfhir.server.address";
+    private static final String SERVERTHREADS = "uk.nhs.digital.mait.epsfhir.server.threads";
+    private static final String SERVERQUEUE = "uk.nhs.digital.mait.epsfhir.server.queue";
+    
+    private static final int DEFAULTPORT = 8080;
+    private static final int DEFAULTSERVERQUEUE = 16;
+    private static final String PATH = "/bundles";
+    
+    private final MedicationRequestBundleBuilder builder;
+    private final ParserPool parsers;
+    private final String contentType;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    
+    /**
+     * @param args Properties file
+     */
+    @SuppressWarnings("CallToPrintStackTrace")
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Invalid arguments: Should be propertiesfile");
+            return;
+        }
+        try {
+            System.getProperties().load(new FileReader(args[0]));
+        }
+        catch (IOException e) {
+            System.err.println("Cannot read properties " + args[0] + ":" + e.getMessage());
+            return;
+        }
+        try {
+            BundleServer s = new BundleServer();
+            Runtime.getRuntime().addShutdownHook(new Thread(s::stop));
+            s.start();
+        }
+        catch (Exception e) {
+            System.err.println("Cannot start server: ");
+            e.printStackTrace();
+        }
+    }
+    
+    BundleServer()
+            throws Exception
+    {
+        builder = new MedicationRequestBundleBuilder(null, null, null);
+        parsers = builder.makeStreamParsers(builder.startContext().get());
+        if (parsers.isXml()) {
+            contentType = "text/plain; charset=utf-8";
+        } else {
+            contentType = parsers.isPrettyPrint() ? "text/plain; charset=utf-8" : "application/fhir+ndjson";
+        }
+        int threads = Integer.getInteger(SERVERTHREADS, Runtime.getRuntime().availableProcessors());
+        int queue = Integer.getInteger(SERVERQUEUE, DEFAULTSERVERQUEUE);
+        executor = new ThreadPoolExecutor(Math.max(threads, 1), Math.max(threads, 1), 0, TimeUnit.MILLISECONDS, 
+                new ArrayBlockingQueue<>(Math.max(queue, 1)), new ThreadPoolExecutor.CallerRunsPolicy());
+        String address = System.getProperty(ADDRESS);
+        int port = Integer.getInteger(PORT, DEFAULTPORT);
+        InetSocketAddress bind = ((address == null) || address.trim().isEmpty()) 
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port) : new InetSocketAddress(address.trim(), port);
+        if (bind.isUnresolved()) {
+            throw new Exception("Cannot resolve " + ADDRESS + " " + address);
+        }
+        server = HttpServer.create(bind, 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+    }
+    
+    void start() {
+        server.start();
+        System.err.println("Serving " + PATH + " on " + server.getAddress().getAddress().getHostAddress() 
+                + " port " + server.getAddress().getPort());
+    }
+    
+    void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+    
+    private void handle(HttpExchange x)
+            throws IOException
+    {
+        try {
+            if (!x.getRequestMethod().contentEquals("POST")) {
+                x.getResponseHeaders().set("Allow", "POST");
+                x.sendResponseHeaders(405, -1);
+                return;
+            }
+            LinkedHashMap<String,List<String>> prescriptions = new LinkedHashMap<>();
+            LinkedHashMap<String,ArrayList<List<String>>> items = new LinkedHashMap<>();
+            try {
+                read(x, prescriptions, items);
+            }
+            catch (Exception e) {
+                byte[] msg = ("Cannot read request: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+                x.sendResponseHeaders(400, msg.length);
+                x.getResponseBody().write(msg);
+                return;
+            }
+            x.getResponseHeaders().set("Content-Type", contentType);
+            x.getResponseHeaders().set("X-Prescriptions", Integer.toString(prescriptions.size()));
+            x.sendResponseHeaders(200, 0);
+            OutputStream os = x.getResponseBody();
+            StreamBundleSink sink = new StreamBundleSink(os, parsers);
+            for (String pid : prescriptions.keySet()) {
+                try {
+                    builder.generate(pid, prescriptions.get(pid), items.get(pid), sink, null);
+                }
+                catch (IOException e) {
+                    // The client has gone, so there is no point carrying on
+                    throw e;
+                }
+                catch (Exception e) {
+                    System.err.println(pid + " : " + e.toString());
+                }
+            }
+        }
+        finally {
+            // Not try-with-resources: HttpExchange is only AutoCloseable from Java 14
+            x.close();
+        }
+    }
+    
+    private static void read(HttpExchange x, LinkedHashMap<String,List<String>> prescriptions, 
+            LinkedHashMap<String,ArrayList<List<String>>> items)
+            throws Exception
+    {
+        boolean inItems = false;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(x.getRequestBody(), charsetOf(x)))) {
+            @SuppressWarnings("UnusedAssignment")
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    inItems = true;
+                    continue;
+                }
+                List<String> row = EMUdata.readLine(line);
+                String id = row.get(EMUdefinitions.ID);
+                if (!inItems) {
+                    // As in EMUdata, a later row for the same prescription replaces an earlier one
+                    prescriptions.put(id, row);
+                } else if (prescriptions.containsKey(id)) {
+                    items.computeIfAbsent(id, k -> new ArrayList<>()).add(row);
+                }
+            }
+        }
+    }
+    
+    private static Charset charsetOf(HttpExchange x) {
+        String ct = x.getRequestHeaders().getFirst("Content-Type");
+        if (ct != null) {
+            for (String p : ct.split(";")) {
+                p = p.trim();
+                if (p.toLowerCase().startsWith("charset=")) {
+                    return Charset.forName(p.substring(8).replace("\"", "").trim());
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Compact in-memory store for EMU rows. Each distinct field value is held once, as
+ * characters in a set of shared pages, and identified by an int value id. A row is
+ * then just a run of value ids in a shared int table. Repeated values (organisation
+ * names, postcodes, role profiles and so on) and the many empty fields of a
+ * prescription row cost four bytes each, rather than a String and its array.
+ *
+ * Interning uses an open-addressed hash table of value ids, comparing against the
+ * stored characters, so no Strings are retained. Rows are added from a single
+ * thread while loading, and may then be read from any number of threads.
+ *
+ * @author Damian Murphy
+ */
+class CompactRowStore {
+
+    private static final int CHARPAGE = 1 << 20;
+    private static final int IDPAGE = 1 << 16;
+    private static final int INITIALVALUES = 1024;
+
+    // Value 0 is always the empty string, and has no storage
+    private char[][] charPages = new char[0][];
+    private int charUsed = 0;
+    private int[] valuePage = new int[INITIALVALUES];
+    private int[] valueOffset = new int[INITIALVALUES];
+    private int[] valueLength = new int[INITIALVALUES];
+    private int[] valueHash = new int[INITIALVALUES];
+    private int values = 1;
+    private int[] slots = new int[INITIALVALUES * 2];
+
+    private int[][] idPages = new int[0][];
+    private int idUsed = 0;
+    private long fieldCount = 0;
+    private long charCount = 0;
+
+    /**
+     * Copy the row into the store.
+     *
+     * @param row The fields
+     * @return An immutable view of the stored row
+     */
+    List<String> add(List<String> row) {
+        int n = row.size();
+        if ((idPages.length == 0) || (idUsed + n > idPages[idPages.length - 1].length)) {
+            idPages = Arrays.copyOf(idPages, idPages.length + 1);
+            idPages[idPages.length - 1] = new int[Math.max(n, IDPAGE)];
+            idUsed = 0;
+        }
+        int[] ids = idPages[idPages.length - 1];
+        int start = idUsed;
+        for (int i = 0; i < n; i++) {
+            ids[start + i] = intern(row.get(i));
+        }
+        idUsed += n;
+        fieldCount += n;
+        return new StoredRow(this, ids, start, n);
+    }
+
+    int getValueCount() { return values; }
+    long getFieldCount() { return fieldCount; }
+    long getCharCount() { return charCount; }
+
+    private int intern(String s) {
+        if (s.isEmpty()) {
+            return 0;
+        }
+        int h = s.hashCode();
+        int mask = slots.length - 1;
+        int i = h & mask;
+        while (slots[i] != 0) {
+            int v = slots[i];
+            if ((valueHash[v] == h) && matches(v, s)) {
+                return v;
+            }
+            i = (i + 1) & mask;
+        }
+        int v = store(s, h);
+        slots[i] = v;
+        if (values * 2 > slots.length) {
+            rehash();
+        }
+        return v;
+    }
+
+    private boolean matches(int v, String s) {
+        if (valueLength[v] != s.length()) {
+            return false;
+        }
+        char[] page = charPages[valuePage[v]];
+        int o = valueOffset[v];
+        for (int i = 0; i < s.length(); i++) {
+            if (page[o + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int store(String s, int h) {
+        int l = s.length();
+        if ((charPages.length == 0) || (charUsed + l > charPages[charPages.length - 1].length)) {
+            charPages = Arrays.copyOf(charPages, charPages.length + 1);
+            charPages[charPages.length - 1] = new char[Math.max(l, CHARPAGE)];
+            charUsed = 0;
+        }
+        if (values == valuePage.length) {
+            int c = values * 2;
+            valuePage = Arrays.copyOf(valuePage, c);
+            valueOffset = Arrays.copyOf(valueOffset, c);
+            valueLength = Arrays.copyOf(valueLength, c);
+            valueHash = Arrays.copyOf(valueHash, c);
+        }
+        s.getChars(0, l, charPages[charPages.length - 1], charUsed);
+        int v = values++;
+        valuePage[v] = charPages.length - 1;
+        valueOffset[v] = charUsed;
+        valueLength[v] = l;
+        valueHash[v] = h;
+        charUsed += l;
+        charCount += l;
+        return v;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int v = 1; v < values; v++) {
+            int i = valueHash[v] & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = v;
+        }
+    }
+
+    private String value(int v) {
+        if (v == 0) {
+            return "";
+        }
+        return new String(charPages[valuePage[v]], valueOffset[v], valueLength[v]);
+    }
+
+    /**
+     * A row held as a run of value ids in one of the store's id pages.
+     */
+    private static class StoredRow
+            extends AbstractList<String>
+            implements RandomAccess
+    {
+        private final CompactRowStore store;
+        private final int[] ids;
+        private final int start;
+        private final int size;
+
+        StoredRow(CompactRowStore s, int[] i, int b, int n) {
+            store = s;
+            ids = i;
+            start = b;
+            size = n;
+        }
+
+        @Override
+        public String get(int i) {
+            if ((i < 0) || (i >= size)) {
+                throw new IndexOutOfBoundsException("Field " + i + " of " + size);
+            }
+            return store.value(ids[start + i]);
+        }
+
+        @Override
+        public int size() { return size; }
+    }
+}
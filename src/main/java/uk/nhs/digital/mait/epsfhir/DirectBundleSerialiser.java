@@ -0,0 +1,428 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.hl7.fhir.r4.model.Bundle;
+import uk.nhs.digital.mait.fhir.util.FhirHelper;
+import uk.nhs.digital.mait.fhir.util.FhirStreamWriter;
+import uk.nhs.digital.mait.fhir.util.ParserPool;
+
+/**
+ * Writes the prescription-order message bundle straight from a Prescription, without
+ * building the HAPI object model. Every bundle has the same shape (MessageHeader,
+ * Patient, Practitioner, Organization, PractitionerRole and one MedicationRequest per
+ * line item), so the elements are written in a fixed order with the system and
+ * extension URLs and the fixed codings as constants. The content is the same as
+ * MedicationRequestBundleBuilder.makeBundle() produces, and the layout the same as
+ * the HAPI parsers give for it.
+ *
+ * Safe for use from multiple threads.
+ *
+ * @author Damian Murphy
+ */
+class DirectBundleSerialiser {
+
+    private static final String EXTENSIONBASE = "https://fhir.nhs.uk/R4/StructureDefinition/";
+    private static final String CODESYSTEMBASE = "https://fhir.nhs.uk/R4/CodeSystem/";
+    private static final String ODSCODE = "https://fhir.nhs.uk/Id/ods-organization-code";
+    private static final String SNOMED = "http://snomed.info/sct";
+    private static final String URNUUID = "urn:uuid:";
+
+    private static final DateTimeFormatter DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssxxx");
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    // For the conformance check
+    private static final Pattern UUID = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    private static final int CONTEXT = 60;
+
+    private final String asid;
+    private final String odsCode;
+    private final String endpoint;
+
+    /**
+     * @param a Sender ASID
+     * @param o Sender ODS code
+     * @param u Sender endpoint URL
+     */
+    DirectBundleSerialiser(String a, String o, String u) {
+        asid = a;
+        odsCode = o;
+        endpoint = u;
+    }
+
+    /**
+     * @param rx The prescription
+     * @param p Parsers for the output, which give the format and pretty-print setting
+     * @return The encoded bundle, as UTF-8
+     */
+    byte[] encode(Prescription rx, ParserPool p) {
+        FhirStreamWriter w = FhirStreamWriter.forParsers(p);
+        write(rx, w);
+        return w.toBytes();
+    }
+
+    /**
+     * Conformance check: compare the output of encode() with HAPI's encoding of the
+     * bundle built from the same prescription by the HAPI path. The direct output
+     * must parse, and must match HAPI's byte for byte once each generated UUID in
+     * both has been replaced by its order of first appearance, since the two were
+     * given different ids.
+     *
+     * @param pid Prescription id, for reporting
+     * @param direct Output of encode()
+     * @param b Bundle built from the same Prescription by the HAPI path
+     * @param p Parsers the direct output was encoded for
+     * @throws Exception If the direct output does not parse, or differs
+     */
+    static void check(String pid, byte[] direct, Bundle b, ParserPool p)
+            throws Exception
+    {
+        String d = new String(direct, StandardCharsets.UTF_8);
+        p.get().parseResource(Bundle.class, d);
+        String h = new String(p.encode(b), StandardCharsets.UTF_8);
+        compare(pid, normalise(h), normalise(d));
+    }
+
+    private static void compare(String pid, String expected, String actual)
+            throws Exception
+    {
+        if (expected.equals(actual)) {
+            return;
+        }
+        int i = 0;
+        while ((i < expected.length()) && (i < actual.length()) && (expected.charAt(i) == actual.charAt(i))) {
+            i++;
+        }
+        throw new Exception("Direct serialiser output differs from HAPI for " + pid + " at offset " + i
+                + ": expected \"" + excerpt(expected, i) + "\" but was \"" + excerpt(actual, i) + "\"");
+    }
+
+    private static String excerpt(String s, int i) {
+        return s.substring(Math.max(0, i - CONTEXT), Math.min(s.length(), i + CONTEXT));
+    }
+
+    private static String normalise(String s) {
+        HashMap<String,String> seen = new HashMap<>();
+        Matcher m = UUID.matcher(s);
+        StringBuffer sb = new StringBuffer(s.length());
+        while (m.find()) {
+            String n = seen.computeIfAbsent(m.group(), k -> "uuid-" + seen.size());
+            m.appendReplacement(sb, n);
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    void write(Prescription rx, FhirStreamWriter w) {
+        // Drawn in the order makeBundle() draws them, so seeded ids match the HAPI path
+        String bundleId = FhirHelper.makeId();
+        String practitionerId = FhirHelper.makeId();
+        String organisationId = FhirHelper.makeId();
+        String roleId = FhirHelper.makeId();
+        String headerId = FhirHelper.makeId();
+        String patientId = FhirHelper.makeId();
+        Participant a = rx.getAuthor();
+        String authored = DATETIME.format(rx.getAuthoredOn().toInstant().atZone(ZoneId.systemDefault()));
+
+        w.startResource(null, "Bundle");
+        w.value("id", bundleId);
+        w.value("type", "message");
+        w.startArray("entry");
+
+        startEntry(w, "MessageHeader", headerId);
+        w.startObject("eventCoding");
+        coding(w, CODESYSTEMBASE + "message-event", "prescription-order", "Prescription Order");
+        w.endObject();
+        w.startObject("sender");
+        w.value("reference", URNUUID + roleId);
+        w.value("display", a.getPersonName());
+        w.endObject();
+        w.startObject("source");
+        w.startArray("extension");
+        w.startExtension(EXTENSIONBASE + "Extension-spineEndpoint");
+        w.startObject("valueIdentifier");
+        identifier(w, "https://fhir.nhs.uk/Id/spine-ASID", asid);
+        w.endObject();
+        w.endItem();
+        w.endArray();
+        w.value("name", odsCode);
+        w.value("endpoint", endpoint);
+        w.endObject();
+        w.startArray("focus");
+        for (LineItem item : rx.getItems()) {
+            reference(w, item.getLineItemId());
+        }
+        reference(w, patientId);
+        reference(w, roleId);
+        w.endArray();
+        endEntry(w);
+
+        writePatient(rx, patientId, w);
+        writeParticipant(a, practitionerId, organisationId, roleId, w);
+        for (LineItem item : rx.getItems()) {
+            writeMedicationRequest(rx, item, patientId, roleId, authored, w);
+        }
+
+        w.endArray();
+        w.endResource();
+    }
+
+    private void writePatient(Prescription rx, String id, FhirStreamWriter w) {
+        startEntry(w, "Patient", id);
+        w.startArray("identifier");
+        w.startItem();
+        w.startArray("extension");
+        w.startExtension(EXTENSIONBASE + "Extension-UKCore-NHSNumberVerificationStatus");
+        w.startObject("valueCodeableConcept");
+        w.startArray("coding");
+        w.startItem();
+        coding(w, CODESYSTEMBASE + "UKCore-NHSNumberVerificationStatus", "01", "Number present and verified");
+        w.endItem();
+        w.endArray();
+        w.endObject();
+        w.endItem();
+        w.endArray();
+        identifier(w, "https://fhir.nhs.uk/Id/nhs-number", rx.getPatientId());
+        w.endItem();
+        w.endArray();
+        w.startArray("name");
+        w.startItem();
+        w.value("use", "official");
+        w.value("family", rx.getPatientSurname());
+        ArrayList<String> given = new ArrayList<>(2);
+        given.add(rx.getPatientGivenName1());
+        given.add(rx.getPatientGivenName2());
+        w.values("given", given);
+        w.values("prefix", List.of(rx.getPatientNameTitle()));
+        w.endItem();
+        w.endArray();
+        w.value("gender", rx.getPatientGender().toCode());
+        Date dob = rx.getPatientBirthTime();
+        if (dob != null) {
+            w.value("birthDate", DATE.format(dob.toInstant().atZone(ZoneId.systemDefault())));
+        }
+        w.startArray("address");
+        w.startItem();
+        w.value("use", "home");
+        w.value("postalCode", rx.getPatientPostcode());
+        w.endItem();
+        w.endArray();
+        endEntry(w);
+    }
+
+    private void writeParticipant(Participant a, String practitionerId, String organisationId, String roleId, 
+            FhirStreamWriter w)
+    {
+        startEntry(w, "Practitioner", practitionerId);
+        w.startArray("identifier");
+        w.startItem();
+        identifier(w, "https://fhir.nhs.uk/Id/sds-user-id", a.getSdsUserId());
+        w.endItem();
+        w.endArray();
+        if (!a.getPersonName().isEmpty()) {
+            w.startArray("name");
+            w.startItem();
+            w.value("text", a.getPersonName());
+            w.endItem();
+            w.endArray();
+        }
+        endEntry(w);
+
+        startEntry(w, "Organization", organisationId);
+        w.startArray("identifier");
+        w.startItem();
+        identifier(w, ODSCODE, a.getSdsOrganisationId());
+        w.endItem();
+        w.endArray();
+        w.startArray("type");
+        w.startItem();
+        w.startArray("coding");
+        w.startItem();
+        coding(w, CODESYSTEMBASE + "organisation-type", a.getOrganisationType(), null);
+        w.endItem();
+        w.endArray();
+        w.endItem();
+        w.endArray();
+        w.value("name", a.getOrganisationName());
+        telecom(w, a.getOrganisationTelecom());
+        if (!a.getOrganisationAddress().isEmpty() || !a.getOrganisationPostcode().isEmpty()) {
+            w.startArray("address");
+            w.startItem();
+            w.values("line", a.getOrganisationAddress());
+            w.value("postalCode", a.getOrganisationPostcode());
+            w.endItem();
+            w.endArray();
+        }
+        w.startObject("partOf");
+        w.startObject("identifier");
+        identifier(w, ODSCODE, a.getPctOrganisationId());
+        w.endObject();
+        w.endObject();
+        endEntry(w);
+
+        startEntry(w, "PractitionerRole", roleId);
+        w.startArray("identifier");
+        w.startItem();
+        identifier(w, "https://fhir.nhs.uk/Id/sds-role-profile-id", a.getRoleProfile());
+        w.endItem();
+        w.endArray();
+        w.startObject("practitioner");
+        w.value("reference", URNUUID + practitionerId);
+        w.endObject();
+        w.startObject("organization");
+        w.value("reference", URNUUID + organisationId);
+        w.endObject();
+        telecom(w, a.getOrganisationTelecom());
+        endEntry(w);
+    }
+
+    private void writeMedicationRequest(Prescription rx, LineItem item, String patientId, String roleId, 
+            String authored, FhirStreamWriter w)
+    {
+        startEntry(w, "MedicationRequest", item.getLineItemId());
+        w.startArray("extension");
+        w.startExtension(EXTENSIONBASE + "Extension-prescriptionType");
+        w.startObject("valueCoding");
+        coding(w, CODESYSTEMBASE + "prescription-type", rx.getPrescriptionType(), rx.getPrescriptionTypeDisplay());
+        w.endObject();
+        w.endItem();
+        w.startExtension(EXTENSIONBASE + "Extension-DM-ResponsiblePractitioner");
+        w.startObject("valueReference");
+        w.value("reference", URNUUID + roleId);
+        w.endObject();
+        w.endItem();
+        w.endArray();
+        w.startArray("identifier");
+        w.startItem();
+        identifier(w, "https://fhir.nhs.uk/Id/prescription-line-id", item.getLineItemId());
+        w.endItem();
+        w.endArray();
+        w.value("status", "active");
+        w.value("intent", "order");
+        w.startObject("medicationCodeableConcept");
+        w.startArray("coding");
+        w.startItem();
+        coding(w, SNOMED, item.getSubstanceCode(), item.getDisplayName());
+        w.endItem();
+        w.endArray();
+        w.endObject();
+        w.startObject("subject");
+        w.value("reference", URNUUID + patientId);
+        w.endObject();
+        w.value("authoredOn", authored);
+        w.startObject("requester");
+        w.value("reference", URNUUID + roleId);
+        w.value("display", rx.getAuthor().getPersonName());
+        w.endObject();
+        w.startObject("groupIdentifier");
+        w.startArray("extension");
+        w.startExtension(EXTENSIONBASE + "Extension-PrescriptionId");
+        w.startObject("valueIdentifier");
+        identifier(w, "https://fhir.nhs.uk/Id/prescription", rx.getClinicalStatementId());
+        w.endObject();
+        w.endItem();
+        w.endArray();
+        identifier(w, "https://fhir.nhs.uk/Id/prescription-short-form", rx.getId());
+        w.endObject();
+        w.startObject("courseOfTherapyType");
+        w.startArray("coding");
+        w.startItem();
+        coding(w, CODESYSTEMBASE + "UKCore-PrescriptionType", rx.getTreatmentType().getCode(), 
+                rx.getTreatmentType().getDisplay());
+        w.endItem();
+        w.endArray();
+        w.endObject();
+        if (item.getDosageInstructions() != null) {
+            w.startArray("dosageInstruction");
+            w.startItem();
+            w.value("text", item.getDosageInstructions());
+            w.value("patientInstruction", item.getAdditionalInstructions());
+            w.endItem();
+            w.endArray();
+        }
+        w.startObject("dispenseRequest");
+        w.startArray("extension");
+        w.startExtension(EXTENSIONBASE + "Extension-performerType");
+        w.startObject("valueCoding");
+        coding(w, CODESYSTEMBASE + "dispensing-site-preference", rx.getDispensingSitePreference(), null);
+        w.endObject();
+        w.endItem();
+        w.endArray();
+        w.startObject("quantity");
+        w.number("value", Long.toString(item.getQuantityCount()));
+        w.value("unit", item.getQuantityText());
+        w.value("system", SNOMED);
+        w.value("code", item.getQuantityCode());
+        w.endObject();
+        if (rx.getNominatedPharmacy() != null) {
+            w.startObject("performer");
+            w.startObject("identifier");
+            identifier(w, ODSCODE, rx.getNominatedPharmacy());
+            w.endObject();
+            w.endObject();
+        }
+        w.endObject();
+        endEntry(w);
+    }
+
+    private static void startEntry(FhirStreamWriter w, String type, String id) {
+        w.startItem();
+        w.value("fullUrl", URNUUID + id);
+        w.startResource("resource", type);
+        w.value("id", id);
+    }
+
+    private static void endEntry(FhirStreamWriter w) {
+        w.endResource();
+        w.endItem();
+    }
+
+    private static void coding(FhirStreamWriter w, String system, String code, String display) {
+        w.value("system", system);
+        w.value("code", code);
+        w.value("display", display);
+    }
+
+    private static void identifier(FhirStreamWriter w, String system, String value) {
+        w.value("system", system);
+        w.value("value", value);
+    }
+
+    private static void reference(FhirStreamWriter w, String id) {
+        w.startItem();
+        w.value("reference", URNUUID + id);
+        w.endItem();
+    }
+
+    private static void telecom(FhirStreamWriter w, String value) {
+        w.startArray("telecom");
+        w.startItem();
+        w.value("system", "phone");
+        w.value("value", value);
+        w.value("use", "work");
+        w.endItem();
+        w.endArray();
+    }
+}
@@ -15,12 +15,14 @@
  */
 package uk.nhs.digital.mait.epsfhir;
 
+import uk.nhs.digital.mait.fhir.util.PipelineMetrics;
 import uk.nhs.digital.mait.fhir.util.UTF8CharacterSubstituter;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -31,18 +33,100 @@ class EMUdata {
 
     private String parent = null;
     private String items = null;
+    private boolean mapped = false;
+    private CompactRowStore store = null;
+    private Shard shard = null;
+    private int loadThreads = 1;
+    private String snapshot = null;
+    private RowFilter filter = null;
     
-    private final HashMap<String,ArrayList<String>> prescriptions = new HashMap<>();
-    private final HashMap<String,ArrayList<ArrayList<String>>> requests = new HashMap<>();
+    private final HashMap<String,List<String>> prescriptions = new HashMap<>();
+    private final HashMap<String,ArrayList<List<String>>> requests = new HashMap<>();
     
     EMUdata(String pfile, String ifile) {
         parent = pfile;
         items = ifile;
     }
     
+    /**
+     * @param pfile Prescriptions file
+     * @param ifile Line items file
+     * @param m Read the files through MappedEMUreader, decoding fields only when used
+     * @param c Hold the rows in a CompactRowStore
+     */
+    EMUdata(String pfile, String ifile, boolean m, boolean c) {
+        this(pfile, ifile);
+        mapped = m;
+        if (c) {
+            store = new CompactRowStore();
+        }
+    }
+    
+    /**
+     * Only load the rows for prescriptions in the given shard.
+     * 
+     * @param s The shard, or null for all rows
+     */
+    void setShard(Shard s) { shard = s; }
+    
+    /**
+     * @param t Number of threads to load the files with. With more than one (and
+     * without memory mapping), the files are loaded by ParallelEMUloader.
+     */
+    void setLoadThreads(int t) { loadThreads = t; }
+    
+    /**
+     * @param s Snapshot file to load from if it matches the input files, and to
+     * write after loading them if not. Null for no snapshot.
+     */
+    void setSnapshot(String s) { snapshot = s; }
+    
+    /**
+     * Only load prescriptions selected by the filter, and their line items. Rows
+     * are checked before they are split.
+     * 
+     * @param f The filter, or null for all prescriptions
+     */
+    void setFilter(RowFilter f) { filter = f; }
+    
     void load()
             throws Exception
     {
+        if (snapshot != null) {
+            long t = PipelineMetrics.start();
+            if (EMUsnapshot.load(snapshot, parent, items, shard, filter, prescriptions, requests)) {
+                PipelineMetrics.stop(PipelineMetrics.Stage.READ, t);
+                check();
+                return;
+            }
+        }
+        loadFiles();
+        if (snapshot != null) {
+            try {
+                EMUsnapshot.write(snapshot, parent, items, shard, filter, prescriptions, requests);
+            }
+            catch (Exception e) {
+                // Not worth failing the run for
+                System.err.println("Cannot write snapshot " + snapshot + " : " + e.toString());
+            }
+        }
+    }
+    
+    private void loadFiles()
+            throws Exception
+    {
+        if (!mapped && (loadThreads > 1)) {
+            new ParallelEMUloader(loadThreads, shard, filter).load(parent, items, prescriptions, requests);
+            if (store != null) {
+                // The store is not thread-safe, so rows go in once the load is done
+                prescriptions.replaceAll((id, row) -> store.add(row));
+                for (ArrayList<List<String>> itemset : requests.values()) {
+                    itemset.replaceAll(store::add);
+                }
+            }
+            check();
+            return;
+        }
         loadPrescriptions();
         loadItems();
         check();
@@ -52,9 +136,17 @@ class EMUdata {
         return prescriptions.keySet();
     }
     
-    ArrayList<String> getPrescriptionData(String id) { return prescriptions.get(id); }
+    List<String> getPrescriptionData(String id) { return prescriptions.get(id); }
 
-    ArrayList<ArrayList<String>> getItems(String id) { return requests.get(id); }
+    List<List<String>> getItems(String id) { return requests.get(id); }
+    
+    void forEach(PrescriptionHandler h)
+            throws Exception
+    {
+        for (String pid : prescriptions.keySet()) {
+            h.handle(pid, prescriptions.get(pid), requests.get(pid));
+        }
+    }
     
     private void check()
             throws Exception
@@ -65,39 +157,111 @@ class EMUdata {
     private void loadPrescriptions()
             throws Exception
     {
+        if (mapped) {
+            try (MappedEMUreader r = new MappedEMUreader(parent)) {
+                @SuppressWarnings("UnusedAssignment")
+                List<String> pline = null;
+                while ((pline = r.next()) != null) {
+                    // Only the id field is decoded for rows in other shards
+                    if ((shard != null) && !shard.owns(pline.get(EMUdefinitions.ID))) {
+                        continue;
+                    }
+                    if ((filter != null) && !filter.accepts(pline)) {
+                        // A later row replaces an earlier one, even when it is filtered out
+                        prescriptions.remove(pline.get(EMUdefinitions.ID));
+                        continue;
+                    }
+                    addPrescription(pline);
+                }
+            }
+            return;
+        }
         BufferedReader br = new BufferedReader(new FileReader(parent));
         @SuppressWarnings("UnusedAssignment")
         String line = null;
+        long t = PipelineMetrics.start();
         while ((line = br.readLine()) != null) {
-            ArrayList<String> pline = readLine(line);
-            prescriptions.put(pline.get(EMUdefinitions.ID), pline);
+            PipelineMetrics.stop(PipelineMetrics.Stage.READ, t);
+            if ((shard == null) || shard.ownsLine(line)) {
+                if ((filter == null) || filter.accepts(line)) {
+                    addPrescription(readLine(line));
+                } else {
+                    prescriptions.remove(EMUstream.idOf(line));
+                }
+            }
+            t = PipelineMetrics.start();
+        }
+    }
+    
+    private void addPrescription(List<String> pline) {
+        if (store != null) {
+            pline = store.add(pline);
         }
+        prescriptions.put(pline.get(EMUdefinitions.ID), pline);
     }
     
     private void loadItems()
             throws Exception
     {
+        if (mapped) {
+            try (MappedEMUreader r = new MappedEMUreader(items)) {
+                @SuppressWarnings("UnusedAssignment")
+                List<String> iline = null;
+                while ((iline = r.next()) != null) {
+                    if (wanted(iline.get(EMUdefinitions.ID))) {
+                        addItem(iline);
+                    }
+                }
+            }
+            return;
+        }
         BufferedReader br = new BufferedReader(new FileReader(items));
         @SuppressWarnings("UnusedAssignment")
         String line = null;
+        long t = PipelineMetrics.start();
         while ((line = br.readLine()) != null) {
-            ArrayList<String> iline = readLine(line);
-            ArrayList<ArrayList<String>> itemset = requests.get(iline.get(EMUdefinitions.ID));
-            if (itemset == null) {
-                itemset = new ArrayList<>();
-                requests.put(iline.get(EMUdefinitions.ID), itemset);
-            } 
-            itemset.add(iline);
+            PipelineMetrics.stop(PipelineMetrics.Stage.READ, t);
+            if (((shard == null) && (filter == null)) || wanted(EMUstream.idOf(line))) {
+                addItem(readLine(line));
+            }
+            t = PipelineMetrics.start();
         }        
     }
     
-    private ArrayList<String> readLine(String line) 
+    /**
+     * @param id Prescription id of a line item
+     * @return True if the line item is needed
+     */
+    private boolean wanted(String id) {
+        // Prescriptions are loaded first, so any filtering has already been done
+        return ((shard == null) || shard.owns(id)) && ((filter == null) || prescriptions.containsKey(id));
+    }
+    
+    private void addItem(List<String> iline) {
+        if (store != null) {
+            iline = store.add(iline);
+        }
+        String id = iline.get(EMUdefinitions.ID);
+        ArrayList<List<String>> itemset = requests.get(id);
+        if (itemset == null) {
+            itemset = new ArrayList<>();
+            requests.put(id, itemset);
+        } 
+        itemset.add(iline);
+    }
+    
+    static ArrayList<String> readLine(String line) 
             throws Exception
     {
         ArrayList<String> list = new ArrayList<>();
+        long t = PipelineMetrics.start();
         String utfLine = UTF8CharacterSubstituter.doSubstitutions(line);
+        PipelineMetrics.stop(PipelineMetrics.Stage.SUBSTITUTE, t);
+        t = PipelineMetrics.start();
         String[] fields = utfLine.split("\t");
         list.addAll(Arrays.asList(fields));
+        PipelineMetrics.stop(PipelineMetrics.Stage.SPLIT, t);
+        PipelineMetrics.rowRead();
         return list;
     }
 }
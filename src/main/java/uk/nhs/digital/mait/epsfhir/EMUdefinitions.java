@@ -117,6 +117,38 @@ package uk.nhs.digital.mait.epsfhir;
      static final int HANDLING = 92;
      static final int PRESCRIPTIONCLINICALSTATEMENTID = 93;
 
+    // Prescription column names, in column order, for looking columns up by name.
+    // Keep in step with the constants above.
+     static final String[] PRESCRIPTIONFIELDS = {
+            "ID", "URGENT", "PATIENTID", "PATIENTADDRESSLINE1", "PATIENTADDRESSLINE2", "PATIENTADDRESSLINE3",
+            "PATIENTADDRESSLINE4", "PATIENTADDRESSLINE5", "PATIENTADDRESSPOSTCODE", "PATIENTADDRESSPAFCODE",
+            "PATIENTADDRESSTYPE", "PATIENTADDRESSUSEFROM", "PATIENTADDRESSUSETO", "PATIENTNAMETITLE",
+            "PATIENTGIVENNAME1", "PATIENTGIVENNAME2", "PATIENTSURNAME", "PATIENTNAMESUFFIX", "PATIENTNAMETYPE",
+            "PATIENTNAMEUSEFROM", "PATIENTNAMEUSETO", "PATIENTGENDER", "PATIENTBIRTHTIME", "PATIENTDECEASEDTIME",
+            "PATIENTPRIMARYCAREPROVIDESDSID", "REPEATNUMBER", "MAXREPEATPRESCRIPTIONS", "MAXIMUMREPEATDISPENSES",
+            "DAYSSUPPLYFROM", "DAYSSUPPLYTO", "EXPECTEDUSE", "TOKENISSUED", "PRESCRIPTIONTREATMENTTYPE",
+            "PRESCRIPTIONTYPE", "TEMPORARYEXEMPTIONINFORMATION", "TEMPORARYEXEMPTIONFROM", "TEMPORARYEXEMPTIONTO",
+            "REVIEWDATE", "ORIGINALPRESCRPTIONREFERENCE", "NOMINATEDPHARMACYID", "DISPENSINGSITEPREFERENCE",
+            "AUTHORROLEPROFILE", "AUTHORJOBCODE", "AUTHORSDSUSERID", "AUTHORPERSONNAME", "AUTHORPERSONTELECOM",
+            "AUTHORSDSORGANISATIONID", "AUTHORORGANISATIONNAME", "AUTHORORGANISATIONTYPE", "AUTHORORGANISATIONTELECOM",
+            "AUTHORORGANISATIONADDRESSLINE1", "AUTHORORGANISATIONADDRESSLINE2", "AUTHORORGANISATIONADDRESSLINE3",
+            "AUTHORORGANISATIONADDRESSLINE4", "AUTHORORGANISATIONADDRESSLINE5", "AUTHORORGANISATIONPOSTCODE",
+            "AUTHORPCTORGANISATIONSDSID", "AUTHORPARTICIPATIONTIME", "RESPONSIBLEPARTYROLEPROFILE",
+            "RESPONSIBLEPARTYJOBCODE", "RESPONSIBLEPARTYSDSUSERID", "RESPONSIBLEPARTYPERSONNAME",
+            "RESPONSIBLEPARTYPERSONTELECOM", "RESPONSIBLEPARTYSDSORGANISATIONID", "RESPONSIBLEPARTYORGANISATIONNAME",
+            "RESPONSIBLEPARTYORGANISATIONTYPE", "RESPPARTYORGANISATIONTELECOM", "RESPPARTYORGANISATIONADDRESSLINE1",
+            "RESPPARTYORGANISATIONADDRESSLINE2", "RESPPARTYORGANISATIONADDRESSLINE3",
+            "RESPPARTYORGANISATIONADDRESSLINE4", "RESPPARTYORGANISATIONADDRESSLINE5", "RESPPARTYORGANISATIONPOSTCODE",
+            "RESPPARTYPCTORGANISATIONSDSID", "RESPONSIBLEPARTYPARTICIPATIONTIME", "LEGALAUTHENTICATORROLEPROFILE",
+            "LEGALAUTHENTICATORJOBCODE", "LEGALAUTHENTICATORSDSUSERID", "LEGALAUTHENTICATORPERSONNAME",
+            "LEGALAUTHENTICATORPERSONTELECOM", "LEGALAUTHENTICATORSDSORGANISATIONID",
+            "LEGALAUTHENTICATORORGANISATIONNAME", "LEGALAUTHENTICATORORGANISATIONTYPE", "LEGALAUTHORGANISATIONTELECOM",
+            "LEGALAUTHORGANISATIONADDRESSLINE1", "LEGALAUTHORGANISATIONADDRESSLINE2",
+            "LEGALAUTHORGANISATIONADDRESSLINE3", "LEGALAUTHORGANISATIONADDRESSLINE4",
+            "LEGALAUTHORGANISATIONADDRESSLINE5", "LEGALAUTHORGANISATIONPOSTCODE", "LEGALAUTHPCTORGANISATIONSDSID",
+            "LEGALAUTHENTICATORPARTICIPATIONTIME", "HANDLING", "PRESCRIPTIONCLINICALSTATEMENTID"
+     };
+
     // Line items
      static final int PRESCRIPTIONID = 0;
      static final int SUBSTANCECODE = 1;
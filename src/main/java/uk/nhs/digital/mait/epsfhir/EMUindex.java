@@ -0,0 +1,385 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import uk.nhs.digital.mait.fhir.util.PipelineMetrics;
+import uk.nhs.digital.mait.fhir.util.UTF8CharacterSubstituter;
+
+/**
+ * Sidecar index giving, for each prescription id, the byte offsets of its row in the
+ * prescriptions file and of its rows in the line items file, so that the bundles for
+ * a few prescriptions can be made without loading the whole extract. The index is
+ * built in one sequential pass over each file, kept next to the prescriptions file
+ * (with ".idx" added to the name) and rebuilt when either file's size or modification
+ * time changes.
+ *
+ * As with EMUdata, where a prescription id appears more than once in the prescriptions
+ * file the later row is used. Lines are decoded with the platform default charset, as
+ * FileReader does.
+ *
+ * Layout (big-endian): magic, version, size and time of each file, entry count, item
+ * offset count, key char count; then the entries sorted by id, each the char offset and
+ * length of its id, its prescription row offset (-1 if none), and the index and count of
+ * its item offsets; then the item offsets, then the id chars.
+ *
+ * @author Damian Murphy
+ */
+class EMUindex
+        implements AutoCloseable
+{
+    static final String SUFFIX = ".idx";
+
+    private static final long MAGIC = 0x4550534649445831L; // "EPSFIDX1"
+    private static final int VERSION = 1;
+    private static final int HEADERSIZE = 8 + 4 + (4 * 8) + 4 + 4 + 4;
+    private static final int ENTRYSIZE = 4 + 4 + 8 + 4 + 4;
+    private static final int BUFFERSIZE = 1048576;
+    private static final int LINECHUNK = 65536;
+
+    private final String name;
+    private final ByteBuffer index;
+    private final int entries;
+    private final int itemBase;
+    private final int keyBase;
+    private final FileChannel prescriptions;
+    private final FileChannel items;
+    private final Charset charset = Charset.defaultCharset();
+
+    private EMUindex(ByteBuffer bb, String pfile, String ifile)
+            throws Exception
+    {
+        name = pfile;
+        index = bb;
+        entries = bb.getInt(HEADERSIZE - 12);
+        int itemCount = bb.getInt(HEADERSIZE - 8);
+        itemBase = HEADERSIZE + (entries * ENTRYSIZE);
+        keyBase = itemBase + (itemCount * Long.BYTES);
+        prescriptions = FileChannel.open(Paths.get(pfile), StandardOpenOption.READ);
+        items = FileChannel.open(Paths.get(ifile), StandardOpenOption.READ);
+    }
+
+    /**
+     * Open the index for the given files, building it first if there is none or
+     * it is out of date.
+     *
+     * @param pfile Prescriptions file
+     * @param ifile Line items file
+     * @return The index
+     * @throws Exception If the index cannot be read or built
+     */
+    static EMUindex open(String pfile, String ifile)
+            throws Exception
+    {
+        File f = new File(pfile + SUFFIX);
+        if (!isCurrent(f, pfile, ifile)) {
+            build(f, pfile, ifile);
+        }
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return new EMUindex(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), pfile, ifile);
+        }
+    }
+
+    /**
+     * Pass each of the given prescriptions to the handler, reading only their rows.
+     * Ids which are not in the prescriptions file are reported on System.err.
+     *
+     * @param ids Prescription ids
+     * @param shard Only pass on prescriptions in this shard, or null for all of them
+     * @param filter Only pass on prescriptions selected by this filter, or null for all of them
+     * @param h Handler
+     * @throws Exception If the files cannot be read, or the handler fails
+     */
+    void process(List<String> ids, Shard shard, RowFilter filter, PrescriptionHandler h)
+            throws Exception
+    {
+        for (String pid : ids) {
+            if ((shard != null) && !shard.owns(pid)) {
+                continue;
+            }
+            int e = find(pid);
+            long rxOffset = (e < 0) ? -1 : index.getLong(entry(e) + 8);
+            if (rxOffset < 0) {
+                System.err.println(pid + " : not in " + name);
+                continue;
+            }
+            String line = readLine(prescriptions, rxOffset);
+            if ((filter != null) && !filter.accepts(line)) {
+                continue;
+            }
+            List<String> rx = EMUdata.readLine(line);
+            int first = index.getInt(entry(e) + 16);
+            int count = index.getInt(entry(e) + 20);
+            ArrayList<List<String>> itemset = null;
+            if (count > 0) {
+                itemset = new ArrayList<>(count);
+                for (int i = first; i < first + count; i++) {
+                    itemset.add(EMUdata.readLine(readLine(items, index.getLong(itemBase + (i * Long.BYTES)))));
+                }
+            }
+            h.handle(pid, rx, itemset);
+        }
+    }
+
+    @Override
+    public void close()
+            throws Exception
+    {
+        prescriptions.close();
+        items.close();
+    }
+
+    private int entry(int e) {
+        return HEADERSIZE + (e * ENTRYSIZE);
+    }
+
+    /**
+     * Binary search of the sorted entries, comparing ids as String.compareTo() does.
+     */
+    private int find(String pid) {
+        int lo = 0;
+        int hi = entries - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareKey(mid, pid);
+            if (c == 0) {
+                return mid;
+            }
+            if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int compareKey(int e, String pid) {
+        int start = keyBase + (index.getInt(entry(e)) * Character.BYTES);
+        int length = index.getInt(entry(e) + 4);
+        int n = Math.min(length, pid.length());
+        for (int i = 0; i < n; i++) {
+            char c = index.getChar(start + (i * Character.BYTES));
+            if (c != pid.charAt(i)) {
+                return c - pid.charAt(i);
+            }
+        }
+        return length - pid.length();
+    }
+
+    private String readLine(FileChannel fc, long offset)
+            throws Exception
+    {
+        long t = PipelineMetrics.start();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer bb = ByteBuffer.allocate(LINECHUNK);
+        long p = offset;
+        boolean done = false;
+        while (!done) {
+            bb.clear();
+            int n = fc.read(bb, p);
+            if (n <= 0) {
+                break;
+            }
+            int end = 0;
+            while ((end < n) && (bb.get(end) != '\n') && (bb.get(end) != '\r')) {
+                end++;
+            }
+            line.write(bb.array(), 0, end);
+            done = (end < n);
+            p += n;
+        }
+        PipelineMetrics.stop(PipelineMetrics.Stage.READ, t);
+        return line.toString(charset);
+    }
+
+    private static boolean isCurrent(File f, String pfile, String ifile)
+            throws Exception
+    {
+        if (!f.isFile() || (f.length() < HEADERSIZE)) {
+            return false;
+        }
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer bb = ByteBuffer.allocate(HEADERSIZE - 12);
+            while (bb.hasRemaining() && (fc.read(bb) > 0)) {}
+            bb.flip();
+            File p = new File(pfile);
+            File i = new File(ifile);
+            return (bb.getLong() == MAGIC) && (bb.getInt() == VERSION) && (bb.getLong() == p.length()) 
+                    && (bb.getLong() == p.lastModified()) && (bb.getLong() == i.length()) && (bb.getLong() == i.lastModified());
+        }
+    }
+
+    private static void build(File f, String pfile, String ifile)
+            throws Exception
+    {
+        HashMap<String,long[]> rx = new HashMap<>();
+        HashMap<String,long[]> it = new HashMap<>();
+        scan(pfile, rx, false);
+        scan(ifile, it, true);
+        ArrayList<String> ids = new ArrayList<>(rx.keySet());
+        for (String id : it.keySet()) {
+            if (!rx.containsKey(id)) {
+                ids.add(id);
+            }
+        }
+        ids.sort(null);
+        long itemCount = 0;
+        long keyChars = 0;
+        for (String id : ids) {
+            long[] o = it.get(id);
+            itemCount += (o == null) ? 0 : o[0];
+            keyChars += id.length();
+        }
+        if (HEADERSIZE + ((long)ids.size() * ENTRYSIZE) + (itemCount * Long.BYTES) + (keyChars * Character.BYTES) > Integer.MAX_VALUE) {
+            throw new Exception("Too many rows to index " + pfile);
+        }
+        File p = new File(pfile);
+        File i = new File(ifile);
+        // A unique name, as processes for different shards may build the index at the
+        // same time. In the same directory, so that the move is atomic.
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getAbsoluteFile().getParentFile());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFERSIZE))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(p.length());
+            out.writeLong(p.lastModified());
+            out.writeLong(i.length());
+            out.writeLong(i.lastModified());
+            out.writeInt(ids.size());
+            out.writeInt((int)itemCount);
+            out.writeInt((int)keyChars);
+            int key = 0;
+            int item = 0;
+            for (String id : ids) {
+                long[] r = rx.get(id);
+                long[] o = it.get(id);
+                int count = (o == null) ? 0 : (int)o[0];
+                out.writeInt(key);
+                out.writeInt(id.length());
+                out.writeLong((r == null) ? -1 : r[1]);
+                out.writeInt(item);
+                out.writeInt(count);
+                key += id.length();
+                item += count;
+            }
+            for (String id : ids) {
+                long[] o = it.get(id);
+                if (o != null) {
+                    for (int n = 1; n <= o[0]; n++) {
+                        out.writeLong(o[n]);
+                    }
+                }
+            }
+            for (String id : ids) {
+                out.writeChars(id);
+            }
+        }
+        catch (Exception e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Record the offset of every line in the file under its prescription id. Each
+     * value is a count followed by that many offsets; for prescriptions only the
+     * last offset is kept.
+     */
+    private static void scan(String file, HashMap<String,long[]> offsets, boolean all)
+            throws Exception
+    {
+        Charset charset = Charset.defaultCharset();
+        ByteArrayOutputStream id = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFERSIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            long base = 0;
+            long lineStart = 0;
+            boolean inId = true;
+            boolean empty = true;
+            boolean afterCr = false;
+            int n = 0;
+            while ((n = in.read(buffer)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer[i];
+                    if ((b == '\n') && afterCr) {
+                        // The second half of a CRLF
+                        afterCr = false;
+                        lineStart = base + i + 1;
+                        continue;
+                    }
+                    afterCr = (b == '\r');
+                    if ((b == '\n') || (b == '\r')) {
+                        // Every line ending ends a line, even an empty one, as with BufferedReader
+                        add(offsets, UTF8CharacterSubstituter.doSubstitutions(id.toString(charset)), lineStart, all);
+                        id.reset();
+                        inId = true;
+                        empty = true;
+                        lineStart = base + i + 1;
+                    } else {
+                        empty = false;
+                        if (inId) {
+                            if (b == '\t') {
+                                inId = false;
+                            } else {
+                                id.write(b);
+                            }
+                        }
+                    }
+                }
+                base += n;
+            }
+            if (!empty) {
+                add(offsets, UTF8CharacterSubstituter.doSubstitutions(id.toString(charset)), lineStart, all);
+            }
+        }
+    }
+
+    private static void add(HashMap<String,long[]> offsets, String id, long offset, boolean all) {
+        long[] o = offsets.get(id);
+        if (o == null) {
+            offsets.put(id, new long[]{1, offset});
+            return;
+        }
+        if (!all) {
+            o[1] = offset;
+            return;
+        }
+        if (o[0] + 1 == o.length) {
+            o = Arrays.copyOf(o, o.length * 2);
+            offsets.put(id, o);
+        }
+        o[(int)++o[0]] = offset;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Binary snapshot of loaded EMU data, so that later runs over the same files skip
+ * reading, substituting and splitting them. The snapshot holds each distinct field
+ * value once, and each row as a list of value numbers. It is memory-mapped when it
+ * is used, and a field value is only decoded the first time it is asked for.
+ *
+ * A snapshot records the size, modification time and a sampled hash of both source
+ * files, and the shard and filter it was loaded with, and is only used if all of
+ * these still match. The hash covers blocks spread evenly through each file rather than the
+ * whole of it, so that checking it stays cheap for large files.
+ *
+ * Layout (big-endian): magic, version, then for each source file its size, time and
+ * hash, the shard index and count (-1 for none), the filter (empty for none); the value count, the char offset of
+ * each value plus the end offset, and the value chars; then the prescription rows,
+ * and the line item rows grouped by prescription. Each row is a field count followed
+ * by that many value numbers.
+ *
+ * @author Damian Murphy
+ */
+class EMUsnapshot {
+
+    private static final long MAGIC = 0x4550534648495253L; // "EPSFHIRS"
+    private static final int VERSION = 2;
+    private static final int SAMPLES = 16;
+    private static final int SAMPLESIZE = 65536;
+    private static final int BUFFERSIZE = 1048576;
+
+    private final ByteBuffer buffer;
+    private final int offsetBase;
+    private final int charBase;
+    private final String[] decoded;
+
+    private EMUsnapshot(ByteBuffer bb, int vc, int ob, int cb) {
+        buffer = bb;
+        offsetBase = ob;
+        charBase = cb;
+        decoded = new String[vc];
+    }
+
+    /**
+     * Fill the maps from the snapshot, if there is one which matches the source files.
+     *
+     * @param snapshot Snapshot file
+     * @param pfile Prescriptions file
+     * @param ifile Line items file
+     * @param shard Shard the data is loaded for, or null
+     * @param filter Filter the data is loaded with, or null
+     * @param prescriptions Filled with prescription rows by id
+     * @param items Filled with line item rows by prescription id
+     * @return False, with the maps untouched, if there is no usable snapshot
+     * @throws Exception If the source files cannot be checked, or the snapshot cannot be read
+     */
+    static boolean load(String snapshot, String pfile, String ifile, Shard shard, RowFilter filter, 
+            Map<String,List<String>> prescriptions, Map<String,ArrayList<List<String>>> items)
+            throws Exception
+    {
+        File f = new File(snapshot);
+        if (!f.isFile()) {
+            return false;
+        }
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            if (fc.size() > Integer.MAX_VALUE) {
+                return false;
+            }
+            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if ((bb.getLong() != MAGIC) || (bb.getInt() != VERSION) || !matches(bb, pfile) || !matches(bb, ifile)) {
+                return false;
+            }
+            int si = bb.getInt();
+            int sn = bb.getInt();
+            if ((shard == null) ? (sn != -1) : ((si != shard.getIndex()) || (sn != shard.getCount()))) {
+                return false;
+            }
+            char[] fx = new char[bb.getInt()];
+            for (int i = 0; i < fx.length; i++) {
+                fx[i] = bb.getChar();
+            }
+            if (!new String(fx).contentEquals((filter == null) ? "" : filter.toString())) {
+                return false;
+            }
+            int vc = bb.getInt();
+            int ob = bb.position();
+            int cb = ob + ((vc + 1) * Integer.BYTES);
+            EMUsnapshot s = new EMUsnapshot(bb, vc, ob, cb);
+            bb.position(cb + (bb.getInt(ob + (vc * Integer.BYTES)) * Character.BYTES));
+            int n = bb.getInt();
+            for (int i = 0; i < n; i++) {
+                List<String> row = s.row(bb);
+                prescriptions.put(row.get(EMUdefinitions.ID), row);
+            }
+            n = bb.getInt();
+            for (int i = 0; i < n; i++) {
+                int c = bb.getInt();
+                ArrayList<List<String>> itemset = new ArrayList<>(c);
+                for (int j = 0; j < c; j++) {
+                    itemset.add(s.row(bb));
+                }
+                items.put(itemset.get(0).get(EMUdefinitions.ID), itemset);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a snapshot of the loaded data. The snapshot is written to a temporary
+     * file and then moved into place.
+     *
+     * @param snapshot Snapshot file
+     * @param pfile Prescriptions file
+     * @param ifile Line items file
+     * @param shard Shard the data was loaded for, or null
+     * @param filter Filter the data was loaded with, or null
+     * @param prescriptions Prescription rows by id
+     * @param items Line item rows by prescription id
+     * @throws Exception If the snapshot cannot be written
+     */
+    static void write(String snapshot, String pfile, String ifile, Shard shard, RowFilter filter, 
+            Map<String,List<String>> prescriptions, Map<String,ArrayList<List<String>>> items)
+            throws Exception
+    {
+        HashMap<String,Integer> numbers = new HashMap<>();
+        ArrayList<String> values = new ArrayList<>();
+        long chars = 0;
+        for (List<String> row : prescriptions.values()) {
+            chars += number(row, numbers, values);
+        }
+        for (ArrayList<List<String>> itemset : items.values()) {
+            for (List<String> row : itemset) {
+                chars += number(row, numbers, values);
+            }
+        }
+        if (chars * Character.BYTES > Integer.MAX_VALUE) {
+            throw new Exception("Too much data for a snapshot");
+        }
+        File f = new File(snapshot);
+        // A unique name, as several runs may write the same snapshot at once. In the
+        // same directory, so that the move is atomic.
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getAbsoluteFile().getParentFile());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFERSIZE))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            writeSource(out, pfile);
+            writeSource(out, ifile);
+            out.writeInt((shard == null) ? -1 : shard.getIndex());
+            out.writeInt((shard == null) ? -1 : shard.getCount());
+            String fx = (filter == null) ? "" : filter.toString();
+            out.writeInt(fx.length());
+            out.writeChars(fx);
+            out.writeInt(values.size());
+            int offset = 0;
+            for (String v : values) {
+                out.writeInt(offset);
+                offset += v.length();
+            }
+            out.writeInt(offset);
+            for (String v : values) {
+                out.writeChars(v);
+            }
+            out.writeInt(prescriptions.size());
+            for (List<String> row : prescriptions.values()) {
+                writeRow(out, row, numbers);
+            }
+            int groups = 0;
+            for (ArrayList<List<String>> itemset : items.values()) {
+                if (!itemset.isEmpty()) {
+                    groups++;
+                }
+            }
+            out.writeInt(groups);
+            for (ArrayList<List<String>> itemset : items.values()) {
+                if (!itemset.isEmpty()) {
+                    out.writeInt(itemset.size());
+                    for (List<String> row : itemset) {
+                        writeRow(out, row, numbers);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long number(List<String> row, HashMap<String,Integer> numbers, ArrayList<String> values) {
+        long chars = 0;
+        for (String v : row) {
+            if (!numbers.containsKey(v)) {
+                numbers.put(v, values.size());
+                values.add(v);
+                chars += v.length();
+            }
+        }
+        return chars;
+    }
+
+    private static void writeRow(DataOutputStream out, List<String> row, HashMap<String,Integer> numbers)
+            throws Exception
+    {
+        out.writeInt(row.size());
+        for (String v : row) {
+            out.writeInt(numbers.get(v));
+        }
+    }
+
+    private static void writeSource(DataOutputStream out, String file)
+            throws Exception
+    {
+        File f = new File(file);
+        out.writeLong(f.length());
+        out.writeLong(f.lastModified());
+        out.writeLong(sampleHash(file));
+    }
+
+    private static boolean matches(ByteBuffer bb, String file)
+            throws Exception
+    {
+        File f = new File(file);
+        long size = bb.getLong();
+        long time = bb.getLong();
+        long hash = bb.getLong();
+        // Check the cheap things first
+        return (size == f.length()) && (time == f.lastModified()) && (hash == sampleHash(file));
+    }
+
+    /**
+     * FNV-1a over SAMPLES blocks of SAMPLESIZE bytes, spread evenly from the start
+     * to the end of the file, and its length.
+     */
+    private static long sampleHash(String file)
+            throws Exception
+    {
+        long h = 0xcbf29ce484222325L;
+        try (FileChannel fc = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long size = fc.size();
+            ByteBuffer bb = ByteBuffer.allocate(SAMPLESIZE);
+            long step = (size <= (long)SAMPLES * SAMPLESIZE) ? SAMPLESIZE : (size - SAMPLESIZE) / (SAMPLES - 1);
+            for (long p = 0; p < size; p += step) {
+                bb.clear();
+                while (bb.hasRemaining() && (fc.read(bb, p + bb.position()) > 0)) {}
+                for (int i = 0; i < bb.position(); i++) {
+                    h ^= bb.get(i);
+                    h *= 0x100000001b3L;
+                }
+            }
+            h ^= size;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private List<String> row(ByteBuffer bb) {
+        int n = bb.getInt();
+        SnapshotRow r = new SnapshotRow(this, bb.position(), n);
+        bb.position(bb.position() + (n * Integer.BYTES));
+        return r;
+    }
+
+    private String value(int v) {
+        // Racing threads may both decode a value, which is harmless
+        String s = decoded[v];
+        if (s == null) {
+            int start = buffer.getInt(offsetBase + (v * Integer.BYTES));
+            int end = buffer.getInt(offsetBase + ((v + 1) * Integer.BYTES));
+            char[] c = new char[end - start];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = buffer.getChar(charBase + ((start + i) * Character.BYTES));
+            }
+            s = new String(c);
+            decoded[v] = s;
+        }
+        return s;
+    }
+
+    /**
+     * A row in the snapshot, read-only.
+     */
+    private static class SnapshotRow
+            extends AbstractList<String>
+            implements RandomAccess
+    {
+        private final EMUsnapshot snapshot;
+        private final int position;
+        private final int size;
+
+        SnapshotRow(EMUsnapshot s, int p, int n) {
+            snapshot = s;
+            position = p;
+            size = n;
+        }
+
+        @Override
+        public String get(int i) {
+            if ((i < 0) || (i >= size)) {
+                throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + size);
+            }
+            return snapshot.value(snapshot.buffer.getInt(position + (i * Integer.BYTES)));
+        }
+
+        @Override
+        public int size() { return size; }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import uk.nhs.digital.mait.fhir.util.PipelineMetrics;
+import uk.nhs.digital.mait.fhir.util.UTF8CharacterSubstituter;
+
+/**
+ * Streaming alternative to EMUdata. Rather than holding both files in memory, the
+ * prescriptions and line items are read in prescription id order and joined as they
+ * go, so each prescription is handed on as soon as all of its items have been read.
+ * Peak memory then depends on the largest prescription, not on the size of the files.
+ *
+ * If the files are not already sorted by prescription id, each is first put through
+ * a bounded external merge sort using temporary files. At most MAXMERGE run files
+ * are merged at once; where there are more, they are first merged in groups into
+ * longer runs, so the number of files open at a time stays bounded.
+ *
+ * As with EMUdata, where a prescription id appears more than once in the prescriptions
+ * file the later row is used, and line items with no matching prescription are ignored.
+ *
+ * @author Damian Murphy
+ */
+class EMUstream {
+
+    private static final int DEFAULTSORTBUFFER = 100000;
+    private static final int MAXMERGE = 100;
+
+    private String parent = null;
+    private String items = null;
+    private boolean sorted = true;
+    private int sortBuffer = DEFAULTSORTBUFFER;
+    private Shard shard = null;
+    private RowFilter filter = null;
+
+    /**
+     * @param pfile Prescriptions file
+     * @param ifile Line items file
+     * @param s True if the input files are already sorted by prescription id
+     * @param b Number of lines held in memory for each external sort run, or zero for the default
+     */
+    EMUstream(String pfile, String ifile, boolean s, int b) {
+        parent = pfile;
+        items = ifile;
+        sorted = s;
+        if (b > 0) {
+            sortBuffer = b;
+        }
+    }
+
+    /**
+     * Only pass on prescriptions in the given shard.
+     * 
+     * @param s The shard, or null for all prescriptions
+     */
+    void setShard(Shard s) { shard = s; }
+    
+    /**
+     * Only pass on prescriptions selected by the filter.
+     * 
+     * @param f The filter, or null for all prescriptions
+     */
+    void setFilter(RowFilter f) { filter = f; }
+    
+    void process(PrescriptionHandler h)
+            throws Exception
+    {
+        try (LineCursor pc = openSorted(parent); LineCursor ic = openSorted(items)) {
+            boolean phas = pc.next();
+            boolean ihas = ic.next();
+            while (phas) {
+                String pid = pc.id();
+                String pline = pc.line();
+                while ((phas = pc.next()) && pc.id().contentEquals(pid)) {
+                    pline = pc.line();
+                }
+                // Skipped items are passed over on the way to the next prescription
+                if ((shard != null) && !shard.owns(pid)) {
+                    continue;
+                }
+                if ((filter != null) && !filter.accepts(pline)) {
+                    continue;
+                }
+                while (ihas && (ic.id().compareTo(pid) < 0)) {
+                    ihas = ic.next();
+                }
+                ArrayList<List<String>> itemset = null;
+                while (ihas && ic.id().contentEquals(pid)) {
+                    if (itemset == null) {
+                        itemset = new ArrayList<>();
+                    }
+                    itemset.add(EMUdata.readLine(ic.line()));
+                    ihas = ic.next();
+                }
+                h.handle(pid, EMUdata.readLine(pline), itemset);
+            }
+        }
+    }
+
+    /**
+     * The prescription id is the first field, so this only needs the text up to
+     * the first tab.
+     */
+    static String idOf(String line)
+            throws Exception
+    {
+        int t = line.indexOf('\t');
+        return UTF8CharacterSubstituter.doSubstitutions((t == -1) ? line : line.substring(0, t));
+    }
+
+    private LineCursor openSorted(String file)
+            throws Exception
+    {
+        if (sorted) {
+            return new ReaderCursor(new BufferedReader(new FileReader(file)), file, true);
+        }
+        ArrayList<File> runs = new ArrayList<>();
+        ArrayList<String[]> buffer = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            @SuppressWarnings("UnusedAssignment")
+            String line = null;
+            long t = PipelineMetrics.start();
+            while ((line = br.readLine()) != null) {
+                PipelineMetrics.stop(PipelineMetrics.Stage.READ, t);
+                String id = idOf(line);
+                // Rows for other shards need not be sorted at all
+                if ((shard != null) && !shard.owns(id)) {
+                    t = PipelineMetrics.start();
+                    continue;
+                }
+                buffer.add(new String[]{id, line});
+                if (buffer.size() == sortBuffer) {
+                    runs.add(writeRun(buffer));
+                    buffer.clear();
+                }
+                t = PipelineMetrics.start();
+            }
+        }
+        catch (Exception e) {
+            deleteRuns(runs);
+            throw e;
+        }
+        if (runs.isEmpty()) {
+            sortRun(buffer);
+            return new ListCursor(buffer);
+        }
+        if (!buffer.isEmpty()) {
+            runs.add(writeRun(buffer));
+            buffer.clear();
+        }
+        return new MergeCursor(reduceRuns(runs));
+    }
+
+    /**
+     * Merge groups of runs into longer runs until there are no more than MAXMERGE.
+     * Groups are contiguous and kept in order, so the result is still stable.
+     */
+    private static ArrayList<File> reduceRuns(ArrayList<File> runs)
+            throws Exception
+    {
+        while (runs.size() > MAXMERGE) {
+            ArrayList<File> merged = new ArrayList<>();
+            try {
+                for (int i = 0; i < runs.size(); i += MAXMERGE) {
+                    List<File> group = runs.subList(i, Math.min(i + MAXMERGE, runs.size()));
+                    merged.add((group.size() == 1) ? group.get(0) : mergeRuns(new ArrayList<>(group)));
+                }
+            }
+            catch (Exception e) {
+                deleteRuns(runs);
+                deleteRuns(merged);
+                throw e;
+            }
+            runs = merged;
+        }
+        return runs;
+    }
+
+    /**
+     * Merge the runs into a single new run, deleting them.
+     */
+    private static File mergeRuns(ArrayList<File> runs)
+            throws Exception
+    {
+        File f = File.createTempFile("epsfhir", ".run");
+        f.deleteOnExit();
+        try (MergeCursor mc = new MergeCursor(runs); 
+                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))) {
+            while (mc.next()) {
+                bw.write(mc.line());
+                bw.newLine();
+            }
+        }
+        catch (Exception e) {
+            f.delete();
+            throw e;
+        }
+        return f;
+    }
+
+    private static void sortRun(ArrayList<String[]> buffer) {
+        // List.sort is stable, so rows with the same id keep their file order
+        buffer.sort(Comparator.comparing((String[] r) -> r[0]));
+    }
+
+    private File writeRun(ArrayList<String[]> buffer)
+            throws Exception
+    {
+        sortRun(buffer);
+        File f = File.createTempFile("epsfhir", ".run");
+        f.deleteOnExit();
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8))) {
+            for (String[] r : buffer) {
+                bw.write(r[1]);
+                bw.newLine();
+            }
+        }
+        return f;
+    }
+
+    private static void deleteRuns(ArrayList<File> runs) {
+        for (File f : runs) {
+            f.delete();
+        }
+    }
+
+    /**
+     * Walks a sequence of lines in prescription id order.
+     */
+    private static abstract class LineCursor
+            implements AutoCloseable
+    {
+        protected String line = null;
+        protected String id = null;
+
+        abstract boolean next() throws Exception;
+
+        String line() { return line; }
+        String id() { return id; }
+
+        @Override
+        public void close() throws Exception {}
+    }
+
+    private static class ReaderCursor
+            extends LineCursor
+    {
+        private final BufferedReader reader;
+        private final String name;
+        private final boolean check;
+        private long lineNumber = 0;
+
+        ReaderCursor(BufferedReader br, String n, boolean c) {
+            reader = br;
+            name = n;
+            check = c;
+        }
+
+        @Override
+        boolean next()
+                throws Exception
+        {
+            long t = PipelineMetrics.start();
+            String l = reader.readLine();
+            if (l == null) {
+                return false;
+            }
+            PipelineMetrics.stop(PipelineMetrics.Stage.READ, t);
+            lineNumber++;
+            String i = idOf(l);
+            if (check && (id != null) && (i.compareTo(id) < 0)) {
+                throw new Exception(name + " is not sorted by prescription id at line " + lineNumber);
+            }
+            line = l;
+            id = i;
+            return true;
+        }
+
+        @Override
+        public void close()
+                throws Exception
+        {
+            reader.close();
+        }
+    }
+
+    private static class ListCursor
+            extends LineCursor
+    {
+        private final ArrayList<String[]> rows;
+        private int next = 0;
+
+        ListCursor(ArrayList<String[]> r) {
+            rows = r;
+        }
+
+        @Override
+        boolean next() {
+            if (next == rows.size()) {
+                return false;
+            }
+            // Release each row as it is used
+            String[] r = rows.set(next++, null);
+            id = r[0];
+            line = r[1];
+            return true;
+        }
+    }
+
+    /**
+     * k-way merge of sorted run files. Ties on id are broken by run order, so the
+     * merge is stable with respect to the original file.
+     */
+    private static class MergeCursor
+            extends LineCursor
+    {
+        private final ArrayList<File> runs;
+        private final ArrayList<ReaderCursor> cursors = new ArrayList<>();
+        private final PriorityQueue<Integer> queue;
+
+        MergeCursor(ArrayList<File> r)
+                throws Exception
+        {
+            runs = r;
+            queue = new PriorityQueue<>((a, b) -> {
+                int c = cursors.get(a).id().compareTo(cursors.get(b).id());
+                return (c != 0) ? c : Integer.compare(a, b);
+            });
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    ReaderCursor rc = new ReaderCursor(new BufferedReader(new InputStreamReader(new FileInputStream(runs.get(i)),
+                            StandardCharsets.UTF_8)), runs.get(i).getName(), false);
+                    cursors.add(rc);
+                    if (rc.next()) {
+                        queue.add(i);
+                    }
+                }
+            }
+            catch (Exception e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        boolean next()
+                throws Exception
+        {
+            Integer i = queue.poll();
+            if (i == null) {
+                return false;
+            }
+            ReaderCursor rc = cursors.get(i);
+            line = rc.line();
+            id = rc.id();
+            if (rc.next()) {
+                queue.add(i);
+            }
+            return true;
+        }
+
+        @Override
+        public void close()
+                throws Exception
+        {
+            for (ReaderCursor rc : cursors) {
+                rc.close();
+            }
+            deleteRuns(runs);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import uk.nhs.digital.mait.fhir.util.PipelineMetrics;
+
+/**
+ * Runs per-prescription bundle generation tasks, either inline on the calling
+ * thread or on a fixed-size worker pool. Error handling follows the "immediatefail"
+ * setting: either the first failure stops the run and is re-thrown to the caller,
+ * or it is reported on System.err and the run carries on. An Error always stops the
+ * run, as it does when running inline.
+ *
+ * @author Damian Murphy
+ */
+class GenerationPool {
+
+    // How many tasks per worker may be queued before submit() blocks. This
+    // keeps the backlog bounded when generation is slower than the input.
+    private static final int QUEUEFACTOR = 4;
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private final int threads;
+    private final boolean immediateFail;
+    private ExecutorService pool = null;
+    private Semaphore inFlight = null;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean abandoned = false;
+
+    GenerationPool(int t, boolean i) {
+        threads = t;
+        immediateFail = i;
+        if (threads > 1) {
+            pool = Executors.newFixedThreadPool(threads);
+            inFlight = new Semaphore(threads * QUEUEFACTOR);
+        }
+    }
+
+    /**
+     * Run the task for the given prescription. When running on a pool this may
+     * block until there is room in the queue.
+     *
+     * @param pid Prescription id, used when reporting errors
+     * @param t The task
+     * @throws Exception If immediate-fail is set and this or an earlier task failed (or an Error, if one did)
+     */
+    void submit(String pid, Task t)
+            throws Exception
+    {
+        if (pool == null) {
+            try {
+                t.run();
+            }
+            catch (Exception e) {
+                PipelineMetrics.failure(e);
+                if (immediateFail) {
+                    throw e;
+                }
+                System.err.println(pid + " : " + e.toString());
+            }
+            return;
+        }
+        checkFailure();
+        inFlight.acquire();
+        pool.execute(() -> {
+            try {
+                if (failure.get() == null) {
+                    t.run();
+                }
+            }
+            catch (Exception e) {
+                // Tasks interrupted by abandon() fail as a result, so are not reported
+                if (abandoned) {
+                    return;
+                }
+                PipelineMetrics.failure(e);
+                if (immediateFail) {
+                    failure.compareAndSet(null, e);
+                } else {
+                    System.err.println(pid + " : " + e.toString());
+                }
+            }
+            catch (Throwable e) {
+                // Otherwise the worker dies and the run carries on without this bundle
+                failure.compareAndSet(null, e);
+            }
+            finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Wait for all submitted tasks to complete, and shut the pool down.
+     *
+     * @throws Exception If immediate-fail is set and any task failed
+     */
+    void finish()
+            throws Exception
+    {
+        if (pool != null) {
+            pool.shutdown();
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {}
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stop without running queued tasks, used when the caller is abandoning the run
+     * because of its own error. Tasks already running are interrupted, and waited
+     * for, so that none is still writing when the caller closes its output.
+     */
+    void abandon() {
+        if (pool == null) {
+            return;
+        }
+        abandoned = true;
+        pool.shutdownNow();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {}
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure()
+            throws Exception
+    {
+        Throwable e = failure.get();
+        if (e != null) {
+            abandon();
+            if (e instanceof Error) {
+                throw (Error)e;
+            }
+            if (e instanceof Exception) {
+                throw (Exception)e;
+            }
+            throw new Exception(e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manifest for incremental runs. Records, for each prescription id, a hash of its
+ * input rows and of the properties which affect the output. On the next run into the
+ * same directory, a prescription whose hash is unchanged, and whose output file is
+ * still there, is skipped. Outputs for prescriptions no longer in the input are
+ * deleted, and the manifest is rewritten at the end of the run.
+ *
+ * A prescription is only recorded once its bundle has been written, so one which
+ * failed is tried again next time. Safe for use from multiple threads.
+ *
+ * @author Damian Murphy
+ */
+class IncrementalManifest {
+
+    static final String FILENAME = "epsfhir-manifest.txt";
+
+    private static final String HEXDIGITS = "0123456789abcdef";
+
+    private final File directory;
+    private final File manifest;
+    private final String extension;
+    private final byte[] propertiesHash;
+    private final HashMap<String,String> previous = new HashMap<>();
+    private final ConcurrentHashMap<String,String> current = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,Boolean> seen = new ConcurrentHashMap<>();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * @param od Output directory, which holds the manifest
+     * @param name Manifest file name
+     * @param ext Output file name extension
+     * @param properties Names of the properties whose values affect the output
+     * @throws Exception If an existing manifest cannot be read
+     */
+    IncrementalManifest(String od, String name, String ext, String[] properties)
+            throws Exception
+    {
+        directory = new File(od);
+        manifest = new File(directory, name);
+        extension = ext;
+        MessageDigest md = digests.get();
+        for (String p : properties) {
+            update(md, p);
+            update(md, System.getProperty(p, ""));
+        }
+        propertiesHash = md.digest();
+        if (manifest.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+                @SuppressWarnings("UnusedAssignment")
+                String line = null;
+                while ((line = br.readLine()) != null) {
+                    int t = line.lastIndexOf('\t');
+                    if (t > 0) {
+                        previous.put(line.substring(0, t), line.substring(t + 1));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param rx Prescription row
+     * @param items Line item rows, may be null
+     * @return Hash of the rows and the properties
+     */
+    String hash(List<String> rx, List<List<String>> items) {
+        MessageDigest md = digests.get();
+        md.update(propertiesHash);
+        update(md, rx);
+        if (items != null) {
+            for (List<String> item : items) {
+                update(md, item);
+            }
+        }
+        byte[] h = md.digest();
+        StringBuilder sb = new StringBuilder(h.length * 2);
+        for (byte b : h) {
+            sb.append(HEXDIGITS.charAt((b >> 4) & 0xf)).append(HEXDIGITS.charAt(b & 0xf));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Note that the prescription is in the input, and see whether it needs
+     * to be generated.
+     *
+     * @param pid Prescription id
+     * @param h Hash of its inputs
+     * @return True if the existing output is up to date
+     */
+    boolean isUnchanged(String pid, String h) {
+        seen.put(pid, Boolean.TRUE);
+        if (h.equals(previous.get(pid)) && new File(directory, pid + extension).exists()) {
+            current.put(pid, h);
+            unchanged.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record that the output for the prescription has been written.
+     *
+     * @param pid Prescription id
+     * @param h Hash of its inputs
+     */
+    void written(String pid, String h) {
+        current.put(pid, h);
+    }
+
+    /**
+     * Delete the outputs of prescriptions which are no longer in the input, and
+     * write the new manifest. Call once all bundles have been written.
+     *
+     * @return A summary for reporting
+     * @throws Exception If the manifest cannot be written
+     */
+    String finish()
+            throws Exception
+    {
+        int deleted = 0;
+        for (Map.Entry<String,String> e : previous.entrySet()) {
+            if (!seen.containsKey(e.getKey())) {
+                File f = new File(directory, e.getKey() + extension);
+                if (f.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        File tmp = new File(directory, manifest.getName() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String,String> e : new TreeMap<>(current).entrySet()) {
+                bw.write(e.getKey());
+                bw.write('\t');
+                bw.write(e.getValue());
+                bw.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return "Incremental: " + (current.size() - unchanged.get()) + " written, " + unchanged.get() + " unchanged, " 
+                + deleted + " deleted";
+    }
+
+    private static void update(MessageDigest md, List<String> row) {
+        md.update((byte)row.size());
+        for (String s : row) {
+            update(md, s);
+        }
+    }
+
+    private static void update(MessageDigest md, String s) {
+        // Length first, so that field boundaries are part of the hash
+        int l = s.length();
+        md.update(new byte[]{(byte)(l >>> 24), (byte)(l >>> 16), (byte)(l >>> 8), (byte)l});
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
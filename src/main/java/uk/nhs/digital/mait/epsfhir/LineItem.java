@@ -0,0 +1,70 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.List;
+
+/**
+ * Immutable, typed view of an EMU line item row, with the fields the builder uses
+ * already checked and converted.
+ *
+ * @author Damian Murphy
+ */
+final class LineItem {
+
+    private final String lineItemId;
+    private final String substanceCode;
+    private final String displayName;
+    private final String quantityText;
+    private final String quantityCode;
+    private final long quantityCount;
+    private final String dosageInstructions;
+    private final String additionalInstructions;
+
+    /**
+     * @param item Line item row
+     * @throws NumberFormatException If the quantity count is not a number
+     */
+    LineItem(List<String> item) {
+        lineItemId = item.get(EMUdefinitions.LINEITEMID);
+        substanceCode = item.get(EMUdefinitions.SUBSTANCECODE);
+        displayName = item.get(EMUdefinitions.DISPLAYNAME);
+        quantityText = item.get(EMUdefinitions.QUANTITYTEXT);
+        quantityCode = item.get(EMUdefinitions.QUANTITYCODE);
+        quantityCount = Long.parseLong(item.get(EMUdefinitions.QUANTITYCOUNT));
+        String d = item.get(EMUdefinitions.DOSAGEINTRUCTIONS);
+        if (d.trim().length() > 0) {
+            dosageInstructions = d;
+            additionalInstructions = item.get(EMUdefinitions.ADDITIONALINSTRUCTIONS);
+        } else {
+            dosageInstructions = null;
+            additionalInstructions = null;
+        }
+    }
+
+    String getLineItemId() { return lineItemId; }
+    String getSubstanceCode() { return substanceCode; }
+    String getDisplayName() { return displayName; }
+    String getQuantityText() { return quantityText; }
+    String getQuantityCode() { return quantityCode; }
+    long getQuantityCount() { return quantityCount; }
+
+    /**
+     * @return The dosage instructions, or null if there are none
+     */
+    String getDosageInstructions() { return dosageInstructions; }
+    String getAdditionalInstructions() { return additionalInstructions; }
+}
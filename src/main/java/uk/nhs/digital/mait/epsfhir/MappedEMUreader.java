@@ -0,0 +1,200 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import uk.nhs.digital.mait.fhir.util.PipelineMetrics;
+import uk.nhs.digital.mait.fhir.util.UTF8CharacterSubstituter;
+
+/**
+ * Reads a tab-separated EMU file through a read-only memory mapping. Each line is
+ * scanned once for its tab positions, and returned as a row that holds only the
+ * field offsets into the mapped buffer. A field is decoded to a String, and has its
+ * tag substitutions applied, only when it is asked for, so the many empty or unused
+ * columns of a prescription row cost nothing beyond their offsets.
+ *
+ * Rows behave like the result of EMUdata.readLine(): trailing empty fields are not
+ * counted, as with String.split(). The file is mapped in windows so that files larger
+ * than 2GB can be read; a row keeps its window mapped for as long as it is referenced.
+ * Line endings are as for BufferedReader, and fields are decoded with the platform
+ * default charset, as FileReader does. That charset must be ASCII-compatible.
+ *
+ * @author Damian Murphy
+ */
+class MappedEMUreader
+        implements AutoCloseable
+{
+    private static final int WINDOWSIZE = 256 * 1024 * 1024;
+    private static final int INITIALFIELDS = 128;
+
+    private final String name;
+    private final FileChannel channel;
+    private final long size;
+    private final Charset charset = Charset.defaultCharset();
+    private ByteBuffer window = null;
+    private long base = 0;
+    private int position = 0;
+    private long lineNumber = 0;
+    private int[] tabs = new int[INITIALFIELDS];
+
+    MappedEMUreader(String file)
+            throws Exception
+    {
+        if (UTF8CharacterSubstituter.getBootException() != null) {
+            throw UTF8CharacterSubstituter.getBootException();
+        }
+        name = file;
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        size = channel.size();
+    }
+
+    /**
+     * @return The next row, or null at the end of the file
+     * @throws Exception If the file cannot be mapped, or has a line longer than the mapping window
+     */
+    List<String> next()
+            throws Exception
+    {
+        long t = PipelineMetrics.start();
+        while (true) {
+            if ((window == null) || (position == window.limit())) {
+                if (base + position >= size) {
+                    return null;
+                }
+                map(base + position);
+            }
+            int limit = window.limit();
+            boolean eof = (base + limit) >= size;
+            int p = position;
+            int n = 0;
+            byte c = 0;
+            while (p < limit) {
+                c = window.get(p);
+                if ((c == '\n') || (c == '\r')) {
+                    break;
+                }
+                if (c == '\t') {
+                    if (n == tabs.length) {
+                        tabs = Arrays.copyOf(tabs, n * 2);
+                    }
+                    tabs[n++] = p;
+                }
+                p++;
+            }
+            // The line, or a "\r\n" pair, runs past the end of the window: map again from the line start
+            if (!eof && ((p == limit) || ((c == '\r') && (p + 1 == limit)))) {
+                if (position == 0) {
+                    throw new Exception(name + " line " + (lineNumber + 1) + " is longer than " + WINDOWSIZE + " bytes");
+                }
+                map(base + position);
+                continue;
+            }
+            MappedRow row = new MappedRow(window, position, p, tabs, n, charset);
+            if (p < limit) {
+                p += ((c == '\r') && (p + 1 < limit) && (window.get(p + 1) == '\n')) ? 2 : 1;
+            }
+            position = p;
+            lineNumber++;
+            PipelineMetrics.stop(PipelineMetrics.Stage.READ, t);
+            PipelineMetrics.rowRead();
+            return row;
+        }
+    }
+
+    long getLineNumber() { return lineNumber; }
+
+    private void map(long from)
+            throws Exception
+    {
+        base = from;
+        position = 0;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOWSIZE, size - base));
+    }
+
+    @Override
+    public void close()
+            throws Exception
+    {
+        // Mappings stay valid after the channel is closed
+        channel.close();
+    }
+
+    /**
+     * One line of the file, as offsets into the mapped window. Field i runs from
+     * bounds[i] up to, but not including, bounds[i + 1] - 1. Immutable, and safe to
+     * read from several threads since only absolute buffer reads are used.
+     */
+    private static class MappedRow
+            extends AbstractList<String>
+            implements RandomAccess
+    {
+        private final ByteBuffer buffer;
+        private final int[] bounds;
+        private final int fields;
+        private final Charset charset;
+
+        MappedRow(ByteBuffer b, int start, int end, int[] tabs, int n, Charset c) {
+            buffer = b;
+            charset = c;
+            bounds = new int[n + 2];
+            bounds[0] = start;
+            for (int i = 0; i < n; i++) {
+                bounds[i + 1] = tabs[i] + 1;
+            }
+            bounds[n + 1] = end + 1;
+            // Follow String.split(): a line with no tabs is a single field, otherwise
+            // trailing empty fields are dropped
+            int f = n + 1;
+            if (n > 0) {
+                while ((f > 0) && (bounds[f] - 1 == bounds[f - 1])) {
+                    f--;
+                }
+            }
+            fields = f;
+        }
+
+        @Override
+        public String get(int i) {
+            if ((i < 0) || (i >= fields)) {
+                throw new IndexOutOfBoundsException("Field " + i + " of " + fields);
+            }
+            int length = bounds[i + 1] - 1 - bounds[i];
+            if (length == 0) {
+                return "";
+            }
+            byte[] b = new byte[length];
+            buffer.get(bounds[i], b);
+            try {
+                return UTF8CharacterSubstituter.doSubstitutions(new String(b, charset));
+            }
+            catch (Exception e) {
+                // Not reached: the substitution table is checked when the reader is made
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int size() { return fields; }
+    }
+}
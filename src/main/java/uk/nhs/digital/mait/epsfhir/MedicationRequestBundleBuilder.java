@@ -17,30 +17,48 @@ package uk.nhs.digital.mait.epsfhir;
 
 import ca.uhn.fhir.context.FhirContext;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import org.hl7.fhir.r4.model.Address;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.hl7.fhir.r4.model.Address.AddressUse;
-import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Address;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Dosage;
-import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.MedicationRequest;
 import org.hl7.fhir.r4.model.MessageHeader;
-import org.hl7.fhir.r4.model.MessageHeader.MessageSourceComponent;
 import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.PractitionerRole;
 import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
+import uk.nhs.digital.mait.fhir.util.ArchiveBundleSink;
+import uk.nhs.digital.mait.fhir.util.AsyncFileBundleSink;
+import uk.nhs.digital.mait.fhir.util.BundleSink;
+import uk.nhs.digital.mait.fhir.util.FhirContextWarmer;
 import uk.nhs.digital.mait.fhir.util.FhirHelper;
+import uk.nhs.digital.mait.fhir.util.FileBundleSink;
+import uk.nhs.digital.mait.fhir.util.IdGenerator;
+import uk.nhs.digital.mait.fhir.util.NdjsonBundleSink;
+import uk.nhs.digital.mait.fhir.util.ParserPool;
+import uk.nhs.digital.mait.fhir.util.PipelineMetrics;
 
 /**
  *
@@ -55,13 +73,81 @@ public class MedicationRequestBundleBuilder {
     private String itemsFile = null;
     
     private boolean useXml = false;
+    private boolean useNdjson = false;
+    private long ndjsonMaxRecords = 0;
+    private long ndjsonMaxBytes = 0;
+    private String archive = null;
+    private int archiveQueue = DEFAULTARCHIVEQUEUE;
+    private int writerThreads = 0;
+    private int writerQueue = DEFAULTWRITERQUEUE;
+    private boolean writerSync = false;
+    private boolean metrics = false;
+    private long metricsInterval = DEFAULTMETRICSINTERVAL;
+    private String metricsJson = null;
+    private ParticipantCache participants = null;
     private boolean immediateFail = true;
+    private int threads = 1;
+    private int loadThreads = 1;
+    private String snapshot = null;
+    private String streaming = null;
+    private int sortBuffer = 0;
+    private boolean mappedIo = false;
+    private boolean compactStore = false;
+    private String serialiser = HAPI;
+    private SenderProfile sender = null;
+    private List<SenderProfile> profiles = null;
+    private boolean incremental = false;
+    private Shard shard = null;
+    private List<String> ids = null;
+    private RowFilter filter = null;
     
     private static final String MYASID = "uk.nhs.digital.mait.epsfhir.asid";
     private static final String MYODS = "uk.nhs.digital.mait.epsfhir.odscode";
     private static final String MYURL = "uk.nhs.digital.mait.epsfhir.url";
     private static final String OUTPUT = "uk.nhs.digital.mait.epsfhir.output";
     private static final String IMMEDIATE = "uk.nhs.digital.mait.epsfhir.immediatefail"; 
+    private static final String THREADS = "uk.nhs.digital.mait.epsfhir.threads";
+    private static final String LOADTHREADS = "uk.nhs.digital.mait.epsfhir.loadthreads";
+    private static final String SNAPSHOT = "uk.nhs.digital.mait.epsfhir.snapshot";
+    private static final String FILTER = "uk.nhs.digital.mait.epsfhir.filter";
+    private static final String STREAMING = "uk.nhs.digital.mait.epsfhir.streaming";
+    private static final String SORTBUFFER = "uk.nhs.digital.mait.epsfhir.sortbuffer";
+    private static final String MAPPEDIO = "uk.nhs.digital.mait.epsfhir.mappedio";
+    private static final String COMPACTSTORE = "uk.nhs.digital.mait.epsfhir.compactstore";
+    private static final String SERIALISER = "uk.nhs.digital.mait.epsfhir.serialiser";
+    private static final String IDS = "uk.nhs.digital.mait.epsfhir.ids";
+    private static final String IDSSEED = "uk.nhs.digital.mait.epsfhir.ids.seed";
+    private static final String INCREMENTAL = "uk.nhs.digital.mait.epsfhir.incremental";
+    
+    // Properties which change the content of a bundle, so that a change to any of
+    // them means every bundle is regenerated in an incremental run.
+    private static final String[] CONTENTPROPERTIES = {MYASID, MYODS, MYURL, OUTPUT, IDS, IDSSEED, SERIALISER};
+    
+    private static final String HAPI = "hapi";
+    private static final String DIRECT = "direct";
+    private static final String CONFORMANCE = "conformance";
+    private static final String NDJSONMAXRECORDS = "uk.nhs.digital.mait.epsfhir.ndjson.maxrecords";
+    private static final String NDJSONMAXBYTES = "uk.nhs.digital.mait.epsfhir.ndjson.maxbytes";
+    private static final String ARCHIVE = "uk.nhs.digital.mait.epsfhir.archive";
+    private static final String ARCHIVEQUEUE = "uk.nhs.digital.mait.epsfhir.archive.queue";
+    private static final String WRITERTHREADS = "uk.nhs.digital.mait.epsfhir.writer.threads";
+    private static final String WRITERQUEUE = "uk.nhs.digital.mait.epsfhir.writer.queue";
+    private static final String WRITERSYNC = "uk.nhs.digital.mait.epsfhir.writer.sync";
+    
+    private static final String METRICS = "uk.nhs.digital.mait.epsfhir.metrics";
+    private static final String METRICSINTERVAL = "uk.nhs.digital.mait.epsfhir.metrics.interval";
+    private static final String METRICSJSON = "uk.nhs.digital.mait.epsfhir.metrics.json";
+    
+    private static final int DEFAULTARCHIVEQUEUE = 1024;
+    private static final int DEFAULTWRITERQUEUE = 1024;
+    private static final String PARTICIPANTCACHE = "uk.nhs.digital.mait.epsfhir.participantcache";
+    
+    // Every resource type that goes into a bundle
+    private static final List<Class<? extends Resource>> EMITTEDTYPES = List.of(Bundle.class, MessageHeader.class, Patient.class, 
+            Practitioner.class, PractitionerRole.class, Organization.class, MedicationRequest.class);
+    
+    private static final int DEFAULTMETRICSINTERVAL = 10;
+    private static final int DEFAULTPARTICIPANTCACHE = 10000;
     
     /**
      * @param args the command line arguments
@@ -78,21 +164,59 @@ public class MedicationRequestBundleBuilder {
             System.err.println("Cannot read properties " + args[0] + ":" + e.getMessage());
             return;
         }
-        switch (args.length) {
+        if ((args.length > 2) && args[1].contentEquals("--merge")) {
+            try {
+                int n = Shard.merge(Arrays.copyOfRange(args, 2, args.length));
+                System.err.println("Merged " + n + " prescriptions into " + new File(args[2], Shard.INDEX));
+            }
+            catch (Exception e) {
+                System.err.println("Cannot merge shards: " + e.getMessage());
+            }
+            return;
+        }
+        ArrayList<String> a = new ArrayList<>(Arrays.asList(args));
+        Shard shard = null;
+        int s = a.indexOf("--shard");
+        if ((s > 0) && (s < a.size() - 1)) {
+            try {
+                shard = Shard.parse(a.get(s + 1));
+            }
+            catch (Exception e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+            a.remove(s + 1);
+            a.remove(s);
+        }
+        List<String> ids = null;
+        s = a.indexOf("--ids");
+        if ((s > 0) && (s < a.size() - 1)) {
+            try {
+                ids = parseIds(a.get(s + 1));
+            }
+            catch (IOException e) {
+                System.err.println("Cannot read ids " + a.get(s + 1) + ":" + e.getMessage());
+                return;
+            }
+            a.remove(s + 1);
+            a.remove(s);
+        }
+        switch (a.size()) {
             case 3:
-                builder = new MedicationRequestBundleBuilder(args[1], args[2], null);
+                builder = new MedicationRequestBundleBuilder(a.get(1), a.get(2), null);
                 break;
             case 4:
-                builder = new MedicationRequestBundleBuilder(args[1], args[2], args[3]);
+                builder = new MedicationRequestBundleBuilder(a.get(1), a.get(2), a.get(3));
                 break;
             default:
-                System.err.println("Invalid arguments: Should be prescriptionsfile itemsfile [outputdirectory]");
+                System.err.println("Invalid arguments: Should be prescriptionsfile itemsfile [outputdirectory] [--shard i/N]"
+                        + " [--ids id,id,...|@idsfile], or --merge outputdirectory [outputdirectory ...]");
                 return;
         }
+        builder.setShard(shard);
+        builder.setIds(ids);
         try {
-            if (builder != null) {
-                builder.go();
-            }
+            builder.go();
         }
         catch (Exception e) {
             System.err.println("Immediate-Fail option set and exeption thrown: ");
@@ -111,36 +235,427 @@ public class MedicationRequestBundleBuilder {
         if ((System.getProperty(OUTPUT) != null) && (System.getProperty(OUTPUT).trim().toLowerCase().contentEquals("xml"))) {
             useXml = true;
         }
+        if ((System.getProperty(OUTPUT) != null) && (System.getProperty(OUTPUT).trim().toLowerCase().contentEquals("ndjson"))) {
+            useNdjson = true;
+        }
         if ((System.getProperty(IMMEDIATE) != null) && (System.getProperty(IMMEDIATE).trim().toLowerCase().contentEquals("true"))) {
             immediateFail = true;
         }        
+        threads = (int)getNumericProperty(THREADS, 1);
+        // Zero or negative means "one per available processor"
+        if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        loadThreads = (int)getNumericProperty(LOADTHREADS, 1);
+        if ((System.getProperty(SNAPSHOT) != null) && !System.getProperty(SNAPSHOT).trim().isEmpty()) {
+            snapshot = System.getProperty(SNAPSHOT).trim();
+        }
+        if (loadThreads < 1) {
+            loadThreads = Runtime.getRuntime().availableProcessors();
+        }
+        if (System.getProperty(STREAMING) != null) {
+            String s = System.getProperty(STREAMING).trim().toLowerCase();
+            if (s.contentEquals("sorted") || s.contentEquals("unsorted")) {
+                streaming = s;
+            }
+        }
+        sortBuffer = (int)getNumericProperty(SORTBUFFER, 0);
+        if ((System.getProperty(MAPPEDIO) != null) && (System.getProperty(MAPPEDIO).trim().toLowerCase().contentEquals("true"))) {
+            mappedIo = true;
+        }
+        if ((System.getProperty(COMPACTSTORE) != null) && (System.getProperty(COMPACTSTORE).trim().toLowerCase().contentEquals("true"))) {
+            compactStore = true;
+        }
+        if (System.getProperty(SERIALISER) != null) {
+            String z = System.getProperty(SERIALISER).trim().toLowerCase();
+            if (z.contentEquals(DIRECT) || z.contentEquals(CONFORMANCE)) {
+                serialiser = z;
+            }
+        }
+        if (System.getProperty(IDS) != null) {
+            try {
+                FhirHelper.setIdGenerator(IdGenerator.forName(System.getProperty(IDS), getNumericProperty(IDSSEED, 0)));
+            }
+            catch (IllegalArgumentException e) {
+                System.err.println("Ignoring invalid " + IDS + " value: " + System.getProperty(IDS));
+            }
+        }
+        if ((System.getProperty(INCREMENTAL) != null) && (System.getProperty(INCREMENTAL).trim().toLowerCase().contentEquals("true"))) {
+            incremental = true;
+        }
+        sender = new SenderProfile(null, System.getProperty(MYASID), System.getProperty(MYODS), System.getProperty(MYURL), outputDirectory);
+        ndjsonMaxRecords = getNumericProperty(NDJSONMAXRECORDS, 0);
+        ndjsonMaxBytes = getNumericProperty(NDJSONMAXBYTES, 0);
+        if (System.getProperty(ARCHIVE) != null) {
+            String a = System.getProperty(ARCHIVE).trim().toLowerCase();
+            if (a.contentEquals("gzip") || a.contentEquals("zip")) {
+                archive = a;
+            }
+        }
+        archiveQueue = (int)getNumericProperty(ARCHIVEQUEUE, DEFAULTARCHIVEQUEUE);
+        writerThreads = (int)getNumericProperty(WRITERTHREADS, 0);
+        writerQueue = (int)getNumericProperty(WRITERQUEUE, DEFAULTWRITERQUEUE);
+        if ((System.getProperty(WRITERSYNC) != null) && (System.getProperty(WRITERSYNC).trim().toLowerCase().contentEquals("true"))) {
+            writerSync = true;
+        }
+        if ((System.getProperty(METRICS) != null) && (System.getProperty(METRICS).trim().toLowerCase().contentEquals("true"))) {
+            metrics = true;
+        }
+        metricsInterval = getNumericProperty(METRICSINTERVAL, DEFAULTMETRICSINTERVAL);
+        metricsJson = System.getProperty(METRICSJSON);
+        participants = new ParticipantCache((int)getNumericProperty(PARTICIPANTCACHE, DEFAULTPARTICIPANTCACHE));
+    }
+    
+    /**
+     * Only generate bundles for prescriptions in the given shard, and list them in
+     * a segment file in the output directory.
+     * 
+     * @param s The shard, or null for all prescriptions
+     */
+    void setShard(Shard s) { shard = s; }
+    
+    /**
+     * Only generate bundles for the given prescriptions, reading just their rows
+     * through an EMUindex.
+     * 
+     * @param i Prescription ids, or null for all prescriptions
+     */
+    void setIds(List<String> i) { ids = i; }
+    
+    /**
+     * @param s Comma-separated prescription ids, or "@" and the name of a file
+     * with one id per line
+     * @return The ids
+     * @throws IOException If the file cannot be read
+     */
+    static List<String> parseIds(String s)
+            throws IOException
+    {
+        List<String> l = s.startsWith("@") ? Files.readAllLines(Paths.get(s.substring(1))) : Arrays.asList(s.split(","));
+        ArrayList<String> ids = new ArrayList<>();
+        for (String id : l) {
+            if (!id.trim().isEmpty()) {
+                ids.add(id.trim());
+            }
+        }
+        return ids;
+    }
+    
+    private static long getNumericProperty(String p, long d) {
+        String v = System.getProperty(p);
+        if (v == null) {
+            return d;
+        }
+        try {
+            return Long.parseLong(v.trim());
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid " + p + " value: " + v);
+        }
+        return d;
     }
     
     public void go() 
             throws Exception
     {
         sanityCheckOutput();
-        EMUdata emu = new EMUdata(prescriptionsFile, itemsFile);
-        emu.load();
+        if ((shard != null) && useStdOut) {
+            throw new Exception("--shard needs an output directory");
+        }
+        if ((System.getProperty(FILTER) != null) && !System.getProperty(FILTER).trim().isEmpty()) {
+            filter = RowFilter.parse(System.getProperty(FILTER));
+        }
+        profiles = SenderProfile.fromProperties(System.getProperty(MYASID), System.getProperty(MYODS), System.getProperty(MYURL), 
+                useStdOut ? null : outputDirectory);
+        if ((profiles != null) && incremental) {
+            throw new Exception(INCREMENTAL + " cannot be used with " + SenderProfile.PROFILES);
+        }
+        // The manifest would take every prescription not asked for as gone from the input
+        if ((ids != null) && incremental) {
+            throw new Exception(INCREMENTAL + " cannot be used with --ids");
+        }
+        if (metrics) {
+            PipelineMetrics.enable();
+            if (metricsInterval > 0) {
+                PipelineMetrics.startReporting(metricsInterval, System.err);
+            }
+        }
+        try {
+            generate();
+        }
+        finally {
+            if (metrics) {
+                reportMetrics();
+            }
+        }
+    }
+    
+    private void reportMetrics() 
+            throws Exception
+    {
+        PipelineMetrics.stopReporting();
+        System.err.print(PipelineMetrics.summary());
+        if (metricsJson != null) {
+            try (OutputStreamWriter w = new OutputStreamWriter(new FileOutputStream(metricsJson), StandardCharsets.UTF_8)) {
+                w.write(PipelineMetrics.toJson());
+            }
+        }
+    }
+    
+    private void generate()
+            throws Exception
+    {
+        // Warm the context while the files are loading
+        CompletableFuture<FhirContext> warming = startContext();
+        EMUdata emu = null;
+        if ((streaming == null) && (ids == null)) {
+            emu = new EMUdata(prescriptionsFile, itemsFile, mappedIo, compactStore);
+            emu.setShard(shard);
+            emu.setLoadThreads(loadThreads);
+            emu.setSnapshot(snapshot);
+            emu.setFilter(filter);
+            emu.load();
+        }
         
-        FhirContext ctx = FhirContext.forR4();
+        FhirContext ctx = warming.get();
         
-        for (String pid : emu.getPrescriptionIDs()) {
+        IncrementalManifest manifest = null;
+        ArrayList<BundleSink> sinks = new ArrayList<>();
+        Exception failed = null;
+        try {
+            if (profiles == null) {
+                sinks.add(makeSink(ctx, outputDirectory, useStdOut));
+            } else {
+                for (SenderProfile p : profiles) {
+                    sinks.add(makeSink(ctx, p.getDirectory(), false));
+                }
+            }
+            if (incremental) {
+                manifest = new IncrementalManifest((outputDirectory == null) ? "." : outputDirectory, 
+                        (shard == null) ? IncrementalManifest.FILENAME : shard.getManifestName(),
+                        sinks.get(0).getParsers().getFileExtension(), CONTENTPROPERTIES);
+            }
+            final IncrementalManifest m = manifest;
+            GenerationPool pool = new GenerationPool(threads, immediateFail);
+            PrescriptionHandler handler = (pid, rx, items) -> {
+                pool.submit(pid, () -> {
+                    if (profiles == null) {
+                        generate(pid, rx, items, sinks.get(0), m);
+                    } else {
+                        generate(pid, rx, items, sinks);
+                    }
+                    if (shard != null) {
+                        shard.written(pid);
+                    }
+                });
+            };
             try {
-                Bundle b = makeBundle(pid, emu.getPrescriptionData(pid), emu.getItems(pid));
-                FhirHelper.write(pid, outputDirectory, b, ctx, useStdOut, useXml, true);
+                if (ids != null) {
+                    try (EMUindex x = EMUindex.open(prescriptionsFile, itemsFile)) {
+                        x.process(ids, shard, filter, handler);
+                    }
+                } else if (emu != null) {
+                    emu.forEach(handler);
+                } else {
+                    EMUstream s = new EMUstream(prescriptionsFile, itemsFile, streaming.contentEquals("sorted"), sortBuffer);
+                    s.setShard(shard);
+                    s.setFilter(filter);
+                    s.process(handler);
+                }
             }
             catch (Exception e) {
-                if (immediateFail) {
-                    throw e;
+                pool.abandon();
+                throw e;
+            }
+            pool.finish();
+        }
+        catch (Exception e) {
+            failed = e;
+            throw e;
+        }
+        finally {
+            closeSinks(sinks, failed);
+        }
+        // Only once the sinks are closed, so everything recorded has been written
+        if (manifest != null) {
+            System.err.println(manifest.finish());
+        }
+        if (shard != null) {
+            if (profiles == null) {
+                shard.writeSegment((outputDirectory == null) ? "." : outputDirectory);
+            } else {
+                for (SenderProfile p : profiles) {
+                    shard.writeSegment(p.getDirectory());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Close every sink, even if closing an earlier one fails.
+     * 
+     * @param sinks The sinks
+     * @param failed Exception already being thrown by the caller, to which any
+     * failures here are added as suppressed, or null
+     * @throws Exception The first failure, if the caller has not already failed
+     */
+    private static void closeSinks(List<BundleSink> sinks, Exception failed)
+            throws Exception
+    {
+        Exception first = failed;
+        for (BundleSink s : sinks) {
+            try {
+                s.close();
+            }
+            catch (Exception e) {
+                if (first == null) {
+                    first = e;
+                } else {
+                    first.addSuppressed(e);
+                }
+            }
+        }
+        if ((failed == null) && (first != null)) {
+            throw first;
+        }
+    }
+    
+    void generate(String pid, List<String> rx, List<List<String>> items, BundleSink sink, IncrementalManifest m)
+            throws Exception
+    {
+        String hash = null;
+        if (m != null) {
+            hash = m.hash(rx, items);
+            if (m.isUnchanged(pid, hash)) {
+                return;
+            }
+        }
+        long t = PipelineMetrics.start();
+        FhirHelper.getIdGenerator().startBundle(pid);
+        Prescription p = new Prescription(pid, rx, items);
+        if (serialiser.contentEquals(HAPI)) {
+            Bundle b = makeBundle(pid, p);
+            PipelineMetrics.stop(PipelineMetrics.Stage.BUILD, t);
+            PipelineMetrics.bundleBuilt();
+            sink.write(pid, b);
+            if (m != null) {
+                m.written(pid, hash);
+            }
+            return;
+        }
+        PipelineMetrics.stop(PipelineMetrics.Stage.BUILD, t);
+        PipelineMetrics.bundleBuilt();
+        t = PipelineMetrics.start();
+        byte[] encoded = sender.getSerialiser().encode(p, sink.getParsers());
+        PipelineMetrics.stop(PipelineMetrics.Stage.ENCODE, t);
+        if (serialiser.contentEquals(CONFORMANCE)) {
+            DirectBundleSerialiser.check(pid, encoded, makeBundle(pid, p), sink.getParsers());
+        }
+        sink.write(pid, encoded);
+        if (m != null) {
+            m.written(pid, hash);
+        }
+    }
+    
+    /**
+     * Make the bundle for a prescription once and write it for every sender profile,
+     * to the sink at the same position in the list. With the HAPI serialiser only the
+     * MessageHeader source is changed between writes, so all profiles get the same ids.
+     * The direct serialiser writes the whole bundle for each profile, so there the ids
+     * only match between profiles when they are seeded.
+     */
+    private void generate(String pid, List<String> rx, List<List<String>> items, List<BundleSink> sinks)
+            throws Exception
+    {
+        long t = PipelineMetrics.start();
+        FhirHelper.getIdGenerator().startBundle(pid);
+        Prescription p = new Prescription(pid, rx, items);
+        if (serialiser.contentEquals(HAPI)) {
+            Bundle b = makeBundle(pid, p);
+            PipelineMetrics.stop(PipelineMetrics.Stage.BUILD, t);
+            PipelineMetrics.bundleBuilt();
+            // Sinks have finished with the bundle when write() returns
+            MessageHeader header = (MessageHeader)b.getEntryFirstRep().getResource();
+            for (int i = 0; i < sinks.size(); i++) {
+                header.setSource(profiles.get(i).makeSource());
+                sinks.get(i).write(pid, b);
+            }
+            return;
+        }
+        PipelineMetrics.stop(PipelineMetrics.Stage.BUILD, t);
+        PipelineMetrics.bundleBuilt();
+        for (int i = 0; i < sinks.size(); i++) {
+            SenderProfile sp = profiles.get(i);
+            BundleSink sink = sinks.get(i);
+            if (i > 0) {
+                FhirHelper.getIdGenerator().startBundle(pid);
+            }
+            t = PipelineMetrics.start();
+            byte[] encoded = sp.getSerialiser().encode(p, sink.getParsers());
+            PipelineMetrics.stop(PipelineMetrics.Stage.ENCODE, t);
+            if (serialiser.contentEquals(CONFORMANCE)) {
+                Bundle b = makeBundle(pid, p);
+                ((MessageHeader)b.getEntryFirstRep().getResource()).setSource(sp.makeSource());
+                DirectBundleSerialiser.check(pid, encoded, b, sink.getParsers());
+            }
+            sink.write(pid, encoded);
+        }
+    }
+    
+    /**
+     * @return A FhirContext, being warmed up on a background thread for the
+     * resource types and format this will write
+     */
+    CompletableFuture<FhirContext> startContext() {
+        return FhirContextWarmer.start(EMITTEDTYPES, useXml);
+    }
+    
+    /**
+     * @param ctx FhirContext
+     * @return Parsers for writing bundles to a single stream in the configured format:
+     * compact JSON for "ndjson" output, otherwise pretty-printed JSON or XML
+     */
+    ParserPool makeStreamParsers(FhirContext ctx) {
+        return useNdjson ? new ParserPool(ctx, false, false) : new ParserPool(ctx, useXml, true);
+    }
+    
+    private BundleSink makeSink(FhirContext ctx, String od, boolean stdout) 
+            throws Exception
+    {
+        if (incremental && (stdout || useNdjson || (archive != null))) {
+            throw new Exception(INCREMENTAL + " needs a file per bundle in an output directory");
+        }
+        if (archive != null) {
+            if (archive.contentEquals("gzip")) {
+                if (!useNdjson) {
+                    throw new Exception(ARCHIVE + " gzip needs " + OUTPUT + " ndjson");
                 }
-                System.err.println(pid + " : " + e.toString());
+                return ArchiveBundleSink.gzip(od, stdout, new ParserPool(ctx, false, false), 
+                        archiveQueue, ndjsonMaxRecords, ndjsonMaxBytes);
             }
+            if (useNdjson) {
+                throw new Exception(ARCHIVE + " zip needs " + OUTPUT + " json or xml");
+            }
+            return ArchiveBundleSink.zip(od, stdout, new ParserPool(ctx, useXml, true), archiveQueue);
+        }
+        if (useNdjson) {
+            return new NdjsonBundleSink(od, stdout, new ParserPool(ctx, false, false), 
+                    ndjsonMaxRecords, ndjsonMaxBytes);
+        }
+        if ((writerThreads > 0) && !stdout) {
+            return new AsyncFileBundleSink(od, new ParserPool(ctx, useXml, true), writerQueue, writerThreads, writerSync);
         }
+        return new FileBundleSink(od, stdout, new ParserPool(ctx, useXml, true));
     }
     
         
-    private Bundle makeBundle(String pid, ArrayList<String> rx, ArrayList<ArrayList<String>> items)
+    Bundle makeBundle(String pid, List<String> rx, List<List<String>> items)
+            throws Exception
+    {
+        return makeBundle(pid, new Prescription(pid, rx, items));
+    }
+    
+    Bundle makeBundle(String pid, Prescription rx)
             throws Exception
     {
         Bundle bundle = new Bundle();
@@ -148,8 +663,7 @@ public class MedicationRequestBundleBuilder {
         bundle.setType(BundleType.MESSAGE);
         // Practitioner and PractitionerRole entries so we can reference them
         
-        ParticipantMaker author = new ParticipantMaker();
-        author.make(EMUdefinitions.AUTHORROLEPROFILE, rx);
+        ParticipantMaker author = participants.make(rx.getAuthor());
         
         MessageHeader header = makeMessageHeader(author);
         FhirHelper.addEntryToBundle(bundle, header);
@@ -166,7 +680,7 @@ public class MedicationRequestBundleBuilder {
                 
         // For each item... make a MedicationRequest and add that, too.
         
-        for (ArrayList<String> item : items) {
+        for (LineItem item : rx.getItems()) {
             MedicationRequest m = makeMedicationRequest(pid, patient, rx, item, nominatedPharmacy, author);
             if (m != null) {
                 FhirHelper.addEntryToBundle(bundle, m);
@@ -187,32 +701,22 @@ public class MedicationRequestBundleBuilder {
                 "prescription-order", "Prescription Order"));
         header.setSender(FhirHelper.makeInternalReference(a.getRole()));
         header.getSender().setDisplay(a.getPractitioner().getName().get(0).getText());
-        header.setSource(makeSource());         
+        header.setSource(sender.makeSource());         
         return header;
     }
     
-    private MessageSourceComponent makeSource() {
-        MessageSourceComponent s = new MessageSourceComponent();
-        Extension asid = FhirHelper.makeExtension(s.addExtension(), 
-                "https://fhir.nhs.uk/R4/StructureDefinition/Extension-spineEndpoint", 
-                FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/spine-ASID", System.getProperty(MYASID)));
-        s.setName(System.getProperty(MYODS));
-        s.setEndpoint(System.getProperty(MYURL));
-        return s;
-    }
-    
     private MedicationRequest makeMedicationRequest(String pid, 
             Patient p,
-            ArrayList<String> rx, 
-            ArrayList<String> item, 
+            Prescription rx, 
+            LineItem item, 
             Reference n, 
             ParticipantMaker a) {
         
         MedicationRequest m = new MedicationRequest();
-        m.setId(item.get(EMUdefinitions.LINEITEMID));
+        m.setId(item.getLineItemId());
         doPrescriptionType(rx, m);
         doResponsiblePractitioner(a, m);
-        m.addIdentifier(FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/prescription-line-id", item.get(EMUdefinitions.LINEITEMID)));
+        m.addIdentifier(FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/prescription-line-id", item.getLineItemId()));
         m.setStatus(MedicationRequest.MedicationRequestStatus.ACTIVE);
         m.setIntent(MedicationRequest.MedicationRequestIntent.ORDER);
         m.setMedication(doMedication(item));
@@ -220,16 +724,16 @@ public class MedicationRequestBundleBuilder {
         
         // This is currently uncertain. EMU doesn't seem to provide a date for the prescription itself,
         // though it does the participation times. So use that.
-        m.setAuthoredOn(FhirHelper.hl7v3ToDate(rx.get(EMUdefinitions.AUTHORPARTICIPATIONTIME)));
+        m.setAuthoredOn(rx.getAuthoredOn());
         Reference rq = FhirHelper.makeInternalReference(a.getRole());
         rq.setDisplay(a.getPractitioner().getName().get(0).getText());
         m.setRequester(rq);
-        m.setGroupIdentifier(makeGroupIdentifier(pid, rx));
+        m.setGroupIdentifier(makeGroupIdentifier(rx));
         m.setCourseOfTherapyType(makeCourseOfTherapyType(rx));
-        if (item.get(EMUdefinitions.DOSAGEINTRUCTIONS).trim().length() > 0) {
+        if (item.getDosageInstructions() != null) {
             Dosage di = m.addDosageInstruction();
-            di.setText(item.get(EMUdefinitions.DOSAGEINTRUCTIONS));
-            di.setPatientInstruction(item.get(EMUdefinitions.ADDITIONALINSTRUCTIONS));
+            di.setText(item.getDosageInstructions());
+            di.setPatientInstruction(item.getAdditionalInstructions());
         }
         m.setDispenseRequest(makeDispenseRequest(n, rx, item));
         // Don't do "substitution" partly because HAPI has a problem with it, and it is 
@@ -237,16 +741,16 @@ public class MedicationRequestBundleBuilder {
         return m;
     }
     
-    private MedicationRequest.MedicationRequestDispenseRequestComponent makeDispenseRequest(Reference n, ArrayList<String> rx, ArrayList<String> item) {
+    private MedicationRequest.MedicationRequestDispenseRequestComponent makeDispenseRequest(Reference n, Prescription rx, LineItem item) {
         MedicationRequest.MedicationRequestDispenseRequestComponent m = new MedicationRequest.MedicationRequestDispenseRequestComponent();
         FhirHelper.makeExtension(m.addExtension(), "https://fhir.nhs.uk/R4/StructureDefinition/Extension-performerType",
                 FhirHelper.makeCoding("https://fhir.nhs.uk/R4/CodeSystem/dispensing-site-preference", 
-                           rx.get(EMUdefinitions.DISPENSINGSITEPREFERENCE), null));
+                           rx.getDispensingSitePreference(), null));
         Quantity q = new Quantity();
-        q.setCode(item.get(EMUdefinitions.QUANTITYCODE));
+        q.setCode(item.getQuantityCode());
         q.setSystem("http://snomed.info/sct");
-        q.setUnit(item.get(EMUdefinitions.QUANTITYTEXT));
-        q.setValue(Long.parseLong(item.get(EMUdefinitions.QUANTITYCOUNT)));
+        q.setUnit(item.getQuantityText());
+        q.setValue(item.getQuantityCount());
         m.setQuantity(q);
         if (n != null) {
             m.setPerformer(n);
@@ -255,45 +759,28 @@ public class MedicationRequestBundleBuilder {
     } 
 
     
-    private CodeableConcept makeCourseOfTherapyType(ArrayList<String> rx) {
+    private CodeableConcept makeCourseOfTherapyType(Prescription rx) {
         CodeableConcept cc = new CodeableConcept();
         Coding c = cc.addCoding();
         c.setSystem("https://fhir.nhs.uk/R4/CodeSystem/UKCore-PrescriptionType");
-        try {
-            String t = rx.get(EMUdefinitions.PRESCRIPTIONTREATMENTTYPE).trim();
-            if ((t.length() == 0) || t.contentEquals("0001")) {
-                c.setCode("acute");
-                c.setDisplay("Acute");                
-            } else {
-                if (t.contentEquals("0002")) {
-                    c.setCode("repeat");
-                    c.setDisplay("Repeat");                                    
-                } else {
-                    c.setCode("repeat-dispensing");
-                    c.setDisplay("Repeat Dispensing");                                    
-                }
-            }
-        }
-        catch (Exception e) {
-            c.setCode("acute");
-            c.setDisplay("Acute");
-        }
+        c.setCode(rx.getTreatmentType().getCode());
+        c.setDisplay(rx.getTreatmentType().getDisplay());
         return cc;
     }
     
-    private Identifier makeGroupIdentifier(String pid, ArrayList<String> rx) {
+    private Identifier makeGroupIdentifier(Prescription rx) {
         Identifier sfid = FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/prescription-short-form", 
-                rx.get(EMUdefinitions.PRESCRIPTIONID));
+                rx.getId());
         FhirHelper.makeExtension(sfid.addExtension(), "https://fhir.nhs.uk/R4/StructureDefinition/Extension-PrescriptionId",
-            FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/prescription", rx.get(EMUdefinitions.PRESCRIPTIONCLINICALSTATEMENTID)));
+            FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/prescription", rx.getClinicalStatementId()));
         return sfid;
     }
     
     
-    private CodeableConcept doMedication(ArrayList<String> item) {
+    private CodeableConcept doMedication(LineItem item) {
         CodeableConcept cc = new CodeableConcept();
-        FhirHelper.makeCoding(cc.addCoding(), "http://snomed.info/sct", item.get(EMUdefinitions.SUBSTANCECODE), 
-                item.get(EMUdefinitions.DISPLAYNAME));
+        FhirHelper.makeCoding(cc.addCoding(), "http://snomed.info/sct", item.getSubstanceCode(), 
+                item.getDisplayName());
         return cc;
     }
         
@@ -303,131 +790,92 @@ public class MedicationRequestBundleBuilder {
                 FhirHelper.makeInternalReference(a.getRole()));        
     }
     
-    private void doPrescriptionType(ArrayList<String> rx, MedicationRequest m) {
+    private void doPrescriptionType(Prescription rx, MedicationRequest m) {
         Extension pt = m.addExtension();
         pt.setUrl("https://fhir.nhs.uk/R4/StructureDefinition/Extension-prescriptionType");
         Coding ptc = FhirHelper.makeCoding("https://fhir.nhs.uk/R4/CodeSystem/prescription-type", 
-                rx.get(EMUdefinitions.PRESCRIPTIONTYPE), null);
-        
-        // TODO: We could do with a general way to resolve displays for MIM vocabularies
-        if (rx.get(EMUdefinitions.PRESCRIPTIONTYPE).contentEquals("0001")) {
-            ptc.setDisplay("General Practitioner Prescribing");
+                rx.getPrescriptionType(), null);
+        if (rx.getPrescriptionTypeDisplay() != null) {
+            ptc.setDisplay(rx.getPrescriptionTypeDisplay());
         }
         pt.setValue(ptc);
     }
     
-    private Reference getNominatedPharmacyReference(ArrayList<String> rx) {
+    private Reference getNominatedPharmacyReference(Prescription rx) {
         
         Reference r = null;
         
-        if (rx.get(EMUdefinitions.NOMINATEDPHARMACYID).length() > 0) {
+        if (rx.getNominatedPharmacy() != null) {
             r = new Reference();
             Identifier id = FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/ods-organization-code",
-                rx.get(EMUdefinitions.NOMINATEDPHARMACYID));
+                rx.getNominatedPharmacy());
             r.setIdentifier(id);
         }
         
         return r;
     }
     
-    private Patient makePatient(ArrayList<String> rx)
+    private Patient makePatient(Prescription rx)
             throws Exception
     {
         Patient p = new Patient();
         p.setId(FhirHelper.makeId());
         addNhsNumber(p, rx);
         addPatientName(p, rx);
-        Date dob = FhirHelper.makeDate(rx.get(EMUdefinitions.PATIENTBIRTHTIME));
+        Date dob = rx.getPatientBirthTime();
         if (dob != null) {
             p.setBirthDate(dob);
         }
-        Date dd = FhirHelper.makeDate(rx.get(EMUdefinitions.PATIENTDECEASEDTIME));
-        p.setGender(getGender(rx.get(EMUdefinitions.PATIENTGENDER)));
+        p.setGender(rx.getPatientGender());
         addPatientAddress(p, rx);
         addPatientGP(p, rx);
         
         return p;
     }
     
-    private void addPatientGP(Patient p, ArrayList<String> rx) {
+    private void addPatientGP(Patient p, Prescription rx) {
         // Reference to "managing organisation" with the GP practice code.
         // See https://simplifier.net/ukcore/~issues/897 for why this
         // is used and not generalPractitioner.
         
         Organization org = new Organization();
         ArrayList<Identifier> ai = FhirHelper.makeIdentifierArray("https://fhir.nhs.uk/Id/ods-organization-code",
-                rx.get(EMUdefinitions.PATIENTPRIMARYCAREPROVIDESDSID));
+                rx.getPrimaryCareProvider());
         org.setIdentifier(ai);
         p.setManagingOrganizationTarget(org);
     }
     
-    private AdministrativeGender getGender(String s) {
-        
-        try {
-            int g = Integer.parseInt(s);
-            switch (g) {
-                case 0:
-                    return AdministrativeGender.UNKNOWN;
-                case 1:
-                    return AdministrativeGender.MALE;
-                case 2:
-                    return AdministrativeGender.FEMALE;
-            }
-        }
-        catch (NumberFormatException e) {
-            return AdministrativeGender.UNKNOWN;
-        }
-        return AdministrativeGender.OTHER;
-    }
-    
-    
-    private void addIfPresent(ArrayList<StringType> st, ArrayList<String> rx, int offset) {
-        try {
-            String s = rx.get(offset).trim();
-            if (s.length() > 0) {
-                st.add(new StringType(s));
-            }
-        }
-        catch (Exception e) {}
-    }
-    
-    private void addPatientAddress(Patient p, ArrayList<String> rx) {
+    private void addPatientAddress(Patient p, Prescription rx) {
         Address a = new Address();
         a.setUse(AddressUse.HOME);        
-        ArrayList<StringType> st = new ArrayList<>();
-        addIfPresent(st, rx, EMUdefinitions.PATIENTADDRESSLINE1);
-        addIfPresent(st, rx, EMUdefinitions.PATIENTADDRESSLINE2);
-        addIfPresent(st, rx, EMUdefinitions.PATIENTADDRESSLINE3);
-        addIfPresent(st, rx, EMUdefinitions.PATIENTADDRESSLINE4);
-        addIfPresent(st, rx, EMUdefinitions.PATIENTADDRESSLINE5);
-        a.setPostalCode(rx.get(EMUdefinitions.PATIENTADDRESSPOSTCODE));
+        a.setPostalCode(rx.getPatientPostcode());
         ArrayList<Address> aa = new ArrayList<>();
         aa.add(a);
         p.setAddress(aa);
     }
     
-    private void addPatientName(Patient p, ArrayList<String> rx) {
+    private void addPatientName(Patient p, Prescription rx) {
         HumanName name = new HumanName();
         name.setUse(HumanName.NameUse.OFFICIAL);
-        name.setFamily(rx.get(EMUdefinitions.PATIENTSURNAME));
+        name.setFamily(rx.getPatientSurname());
         StringType st = new StringType();
-        st.setValue(rx.get(EMUdefinitions.PATIENTNAMETITLE));
+        st.setValue(rx.getPatientNameTitle());
         ArrayList<StringType> pf = new ArrayList<>();
         pf.add(st);
         name.setPrefix(pf);
-        name.addGiven(rx.get(EMUdefinitions.PATIENTGIVENNAME1));
-        if (rx.get(EMUdefinitions.PATIENTGIVENNAME2).length() > 0) {
-            name.addGiven(rx.get(EMUdefinitions.PATIENTGIVENNAME2));
+        name.addGiven(rx.getPatientGivenName1());
+        if (rx.getPatientGivenName2() != null) {
+            name.addGiven(rx.getPatientGivenName2());
         }
         ArrayList<HumanName> hn = new ArrayList<>();
         hn.add(name);
         p.setName(hn);
     }
     
-    private void addNhsNumber(Patient p, ArrayList<String> rx) {
+    private void addNhsNumber(Patient p, Prescription rx) {
         Identifier nhsnumber = new Identifier();
         nhsnumber.setSystem("https://fhir.nhs.uk/Id/nhs-number");
-        nhsnumber.setValue(rx.get(EMUdefinitions.PATIENTID));
+        nhsnumber.setValue(rx.getPatientId());
         Extension evs = new Extension();
         evs.setUrl("https://fhir.nhs.uk/R4/StructureDefinition/Extension-UKCore-NHSNumberVerificationStatus");
         CodeableConcept vccvs = new CodeableConcept();
@@ -0,0 +1,269 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import uk.nhs.digital.mait.fhir.util.PipelineMetrics;
+
+/**
+ * Loads the two EMU files on a fork-join pool. Both files are read at the same
+ * time, each split into byte ranges which start and end on line boundaries. Every
+ * range is read and its lines substituted and split on a worker thread, giving a map
+ * per range; the maps are then merged in file order, so as with EMUdata a later
+ * prescription row replaces an earlier one and line items keep their file order.
+ * With a filter the prescriptions are loaded first, so that line items of rejected
+ * prescriptions can be skipped before they are split.
+ *
+ * Lines are decoded with the platform default charset, as FileReader does, which
+ * must be ASCII-compatible so that a line feed byte always ends a line.
+ *
+ * @author Damian Murphy
+ */
+class ParallelEMUloader {
+
+    // Ranges are not split below this size
+    private static final long MINCHUNK = 4 * 1024 * 1024;
+    // Bytes read at a time when looking for the end of a line
+    private static final int SCANSIZE = 8192;
+
+    private final int threads;
+    private final Shard shard;
+    private final RowFilter filter;
+    private final Charset charset = Charset.defaultCharset();
+
+    /**
+     * @param t Number of worker threads
+     * @param s Only load rows for this shard, or null for all rows
+     * @param f Only load prescriptions selected by this filter, and their items, or null for all
+     */
+    ParallelEMUloader(int t, Shard s, RowFilter f) {
+        threads = t;
+        shard = s;
+        filter = f;
+    }
+
+    /**
+     * @param pfile Prescriptions file
+     * @param ifile Line items file
+     * @param prescriptions Filled with prescription rows by id
+     * @param items Filled with line item rows by prescription id
+     * @throws Exception If either file cannot be read
+     */
+    void load(String pfile, String ifile, Map<String,List<String>> prescriptions, Map<String,ArrayList<List<String>>> items)
+            throws Exception
+    {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try (FileChannel pc = FileChannel.open(Paths.get(pfile), StandardOpenOption.READ); 
+                FileChannel ic = FileChannel.open(Paths.get(ifile), StandardOpenOption.READ)) {
+            ForkJoinTask<Chunk> p = pool.submit(new Range(pc, 0, pc.size(), false, null));
+            if (filter == null) {
+                ForkJoinTask<Chunk> i = pool.submit(new Range(ic, 0, ic.size(), true, null));
+                prescriptions.putAll(p.get().prescriptions);
+                items.putAll(i.get().items);
+                return;
+            }
+            // Filtered out prescriptions are held as nulls until the merge is done,
+            // so that a rejected later row still replaces an earlier one
+            HashMap<String,List<String>> rx = p.get().prescriptions;
+            rx.values().removeIf(row -> row == null);
+            ForkJoinTask<Chunk> i = pool.submit(new Range(ic, 0, ic.size(), true, rx.keySet()));
+            prescriptions.putAll(rx);
+            items.putAll(i.get().items);
+        }
+        catch (ExecutionException e) {
+            // Report what went wrong in the range, not the wrappers around it
+            Throwable c = e.getCause();
+            while (((c instanceof IllegalStateException) || (c instanceof ExecutionException)) && (c.getCause() != null)) {
+                c = c.getCause();
+            }
+            if (c instanceof Exception) {
+                throw (Exception)c;
+            }
+            throw e;
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The rows from one range of a file.
+     */
+    private static class Chunk {
+        private HashMap<String,List<String>> prescriptions = null;
+        private HashMap<String,ArrayList<List<String>>> items = null;
+
+        /**
+         * Merge with the chunk which follows this one in the file.
+         */
+        private Chunk merge(Chunk next) {
+            if (prescriptions != null) {
+                if (prescriptions.size() >= next.prescriptions.size()) {
+                    prescriptions.putAll(next.prescriptions);
+                    return this;
+                }
+                // Copy the smaller map, but still let the later rows win
+                for (Map.Entry<String,List<String>> e : prescriptions.entrySet()) {
+                    // Not putIfAbsent(), which would replace a null (filtered out) value
+                    if (!next.prescriptions.containsKey(e.getKey())) {
+                        next.prescriptions.put(e.getKey(), e.getValue());
+                    }
+                }
+                return next;
+            }
+            for (Map.Entry<String,ArrayList<List<String>>> e : next.items.entrySet()) {
+                ArrayList<List<String>> earlier = items.putIfAbsent(e.getKey(), e.getValue());
+                if (earlier != null) {
+                    earlier.addAll(e.getValue());
+                }
+            }
+            return this;
+        }
+    }
+
+    private class Range
+            extends RecursiveTask<Chunk>
+    {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final boolean isItems;
+        private final Set<String> wanted;
+
+        /**
+         * @param c The file
+         * @param s Offset of the first line in the range
+         * @param e Offset of the end of the range
+         * @param i True if this is the line items file
+         * @param w Prescription ids to keep line items for, or null for all of them
+         */
+        Range(FileChannel c, long s, long e, boolean i, Set<String> w) {
+            channel = c;
+            start = s;
+            end = e;
+            isItems = i;
+            wanted = w;
+        }
+
+        @Override
+        protected Chunk compute() {
+            try {
+                if (end - start > MINCHUNK * 2) {
+                    long middle = lineStart(start + (end - start) / 2);
+                    if (middle < end) {
+                        Range first = new Range(channel, start, middle, isItems, wanted);
+                        first.fork();
+                        Chunk second = new Range(channel, middle, end, isItems, wanted).compute();
+                        return first.join().merge(second);
+                    }
+                }
+                return read();
+            }
+            catch (RuntimeException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return The offset of the first line starting at or after p
+         */
+        private long lineStart(long p)
+                throws Exception
+        {
+            ByteBuffer bb = ByteBuffer.allocate(SCANSIZE);
+            // The line in progress at p - 1 ends at the next line feed
+            long offset = p - 1;
+            while (offset < end) {
+                bb.clear();
+                int n = channel.read(bb, offset);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (bb.get(i) == '\n') {
+                        return offset + i + 1;
+                    }
+                }
+                offset += n;
+            }
+            return end;
+        }
+
+        private Chunk read()
+                throws Exception
+        {
+            long t = PipelineMetrics.start();
+            byte[] data = new byte[(int)(end - start)];
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, start + bb.position()) < 0) {
+                    break;
+                }
+            }
+            PipelineMetrics.stop(PipelineMetrics.Stage.READ, t);
+            Chunk c = new Chunk();
+            if (isItems) {
+                c.items = new HashMap<>();
+            } else {
+                c.prescriptions = new HashMap<>();
+            }
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data, 0, bb.position()), 
+                    charset))) {
+                @SuppressWarnings("UnusedAssignment")
+                String line = null;
+                while ((line = br.readLine()) != null) {
+                    if ((shard != null) && !shard.ownsLine(line)) {
+                        continue;
+                    }
+                    if (!isItems && (filter != null) && !filter.accepts(line)) {
+                        c.prescriptions.put(EMUstream.idOf(line), null);
+                        continue;
+                    }
+                    if ((wanted != null) && !wanted.contains(EMUstream.idOf(line))) {
+                        continue;
+                    }
+                    List<String> row = EMUdata.readLine(line);
+                    String id = row.get(EMUdefinitions.ID);
+                    if (isItems) {
+                        c.items.computeIfAbsent(id, k -> new ArrayList<>()).add(row);
+                    } else {
+                        c.prescriptions.put(id, row);
+                    }
+                }
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable, typed view of one participant (author, responsible party or legal
+ * authenticator) in an EMU prescription row. Two participants are equal if all of
+ * their fields other than the participation time match, so instances can be used
+ * as keys for the resources made from them.
+ *
+ * @author Damian Murphy
+ */
+final class Participant {
+
+    private final String roleProfile;
+    private final String jobCode;
+    private final String sdsUserId;
+    private final String personName;
+    private final String personTelecom;
+    private final String sdsOrganisationId;
+    private final String organisationName;
+    private final String organisationType;
+    private final String organisationTelecom;
+    private final List<String> organisationAddress;
+    private final String organisationPostcode;
+    private final String pctOrganisationId;
+    private final int hash;
+
+    /**
+     * @param b Offset of the participant fields in the prescription row
+     * @param rx Prescription row
+     */
+    Participant(int b, List<String> rx) {
+        roleProfile = rx.get(b + EMUdefinitions.ROLEPROFILE);
+        jobCode = rx.get(b + EMUdefinitions.JOBCODE);
+        sdsUserId = rx.get(b + EMUdefinitions.SDSUSERID);
+        personName = rx.get(b + EMUdefinitions.PERSONNAME);
+        personTelecom = rx.get(b + EMUdefinitions.PERSONTELECOM);
+        sdsOrganisationId = rx.get(b + EMUdefinitions.SDSORGANISATIONID);
+        organisationName = rx.get(b + EMUdefinitions.ORGANISATIONNAME);
+        organisationType = rx.get(b + EMUdefinitions.ORGANISATIONTYPE);
+        organisationTelecom = rx.get(b + EMUdefinitions.ORGANISATIONTELECOM);
+        ArrayList<String> a = new ArrayList<>();
+        for (int i = EMUdefinitions.ORGANISATIONADDRESSLINE1; i <= EMUdefinitions.ORGANISATIONADDRESSLINE5; i++) {
+            String l = rx.get(b + i);
+            if (l.length() > 0) {
+                a.add(l);
+            }
+        }
+        organisationAddress = List.copyOf(a);
+        organisationPostcode = rx.get(b + EMUdefinitions.ORGANISATIONPOSTCODE);
+        pctOrganisationId = rx.get(b + EMUdefinitions.PCTORGANISATIONSDSID);
+        hash = Objects.hash(roleProfile, jobCode, sdsUserId, personName, personTelecom, sdsOrganisationId,
+                organisationName, organisationType, organisationTelecom, organisationAddress, organisationPostcode,
+                pctOrganisationId);
+    }
+
+    String getRoleProfile() { return roleProfile; }
+    String getJobCode() { return jobCode; }
+    String getSdsUserId() { return sdsUserId; }
+    String getPersonName() { return personName; }
+    String getPersonTelecom() { return personTelecom; }
+    String getSdsOrganisationId() { return sdsOrganisationId; }
+    String getOrganisationName() { return organisationName; }
+    String getOrganisationType() { return organisationType; }
+    String getOrganisationTelecom() { return organisationTelecom; }
+
+    /**
+     * @return The non-empty organisation address lines, unmodifiable
+     */
+    List<String> getOrganisationAddress() { return organisationAddress; }
+    String getOrganisationPostcode() { return organisationPostcode; }
+    String getPctOrganisationId() { return pctOrganisationId; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Participant)) {
+            return false;
+        }
+        Participant p = (Participant)o;
+        return (hash == p.hash)
+                && roleProfile.equals(p.roleProfile)
+                && jobCode.equals(p.jobCode)
+                && sdsUserId.equals(p.sdsUserId)
+                && personName.equals(p.personName)
+                && personTelecom.equals(p.personTelecom)
+                && sdsOrganisationId.equals(p.sdsOrganisationId)
+                && organisationName.equals(p.organisationName)
+                && organisationType.equals(p.organisationType)
+                && organisationTelecom.equals(p.organisationTelecom)
+                && organisationAddress.equals(p.organisationAddress)
+                && organisationPostcode.equals(p.organisationPostcode)
+                && pctOrganisationId.equals(p.pctOrganisationId);
+    }
+
+    @Override
+    public int hashCode() { return hash; }
+}
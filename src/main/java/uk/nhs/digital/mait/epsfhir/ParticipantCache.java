@@ -0,0 +1,70 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of already-built participant resources. A few thousand prescribers author
+ * most of the prescriptions in an EMU extract, so rather than building the same
+ * Practitioner, PractitionerRole and Organization field by field for every bundle,
+ * a copy of the first one built for each distinct Participant is kept as a template
+ * and later ones are copied from it (with new resource ids). The template is a
+ * separate copy, so that changes to the resources in a bundle cannot reach it.
+ * 
+ * Participant equality covers all of the fields the resources are built from, so a
+ * template is only ever used for a participant it matches exactly. When the cache is
+ * full it is emptied and starts again. Safe for use from multiple threads.
+ * 
+ * @author Damian Murphy
+ */
+class ParticipantCache {
+    
+    private final int maxSize;
+    private final ConcurrentHashMap<Participant,ParticipantMaker> templates = new ConcurrentHashMap<>();
+    
+    /**
+     * @param s Maximum number of templates held. Zero disables the cache.
+     */
+    ParticipantCache(int s) {
+        maxSize = s;
+    }
+    
+    /**
+     * Make the resources for the given participant.
+     * 
+     * @param a The participant
+     * @return The participant resources
+     */
+    ParticipantMaker make(Participant a) {
+        ParticipantMaker p = new ParticipantMaker();
+        if (maxSize <= 0) {
+            p.make(a);
+            return p;
+        }
+        ParticipantMaker t = templates.get(a);
+        if (t != null) {
+            p.copyFrom(t);
+            return p;
+        }
+        p.make(a);
+        if (templates.size() >= maxSize) {
+            templates.clear();
+        }
+        templates.put(a, p.snapshot());
+        return p;
+    }
+}
@@ -38,97 +38,109 @@ class ParticipantMaker {
     private PractitionerRole role = null;
     private Organization organisation = null;
     
-    void make(int b, ArrayList<String> rx) {        
+    void make(Participant p) {        
         practitioner = new Practitioner();
         role = new PractitionerRole();
         organisation = new Organization();
-        doPractitioner(b, rx);
-        doOrg(b, rx);
-        doRole(b, rx);
+        doPractitioner(p);
+        doOrg(p);
+        doRole(p);
+    }
+    
+    /**
+     * Make this participant as a copy of one already made, with new resource ids.
+     * The template is not modified, so may be shared between threads.
+     * 
+     * @param t Template participant
+     */
+    void copyFrom(ParticipantMaker t) {
+        practitioner = t.practitioner.copy();
+        practitioner.setId(FhirHelper.makeId());
+        organisation = t.organisation.copy();
+        organisation.setId(FhirHelper.makeId());
+        role = t.role.copy();
+        role.setId(FhirHelper.makeId());
+        role.setPractitioner(FhirHelper.makeInternalReference(practitioner));
+        role.setOrganization(FhirHelper.makeInternalReference(organisation));
+    }
+    
+    /**
+     * @return A copy of this participant's resources, with the same ids, for use as
+     * a template which no bundle refers to. No new ids are made.
+     */
+    ParticipantMaker snapshot() {
+        ParticipantMaker s = new ParticipantMaker();
+        s.practitioner = practitioner.copy();
+        s.organisation = organisation.copy();
+        s.role = role.copy();
+        return s;
     }
     
     Practitioner getPractitioner() { return practitioner; }
     PractitionerRole getRole() { return role; }
     Organization getOrganisation() { return organisation; }
     
-    private void doPractitioner(int b, ArrayList<String> rx) {
+    private void doPractitioner(Participant p) {
         practitioner.setId(FhirHelper.makeId());
         HumanName h = new HumanName();
-        h.setText(rx.get(b + EMUdefinitions.PERSONNAME));
+        h.setText(p.getPersonName());
         ArrayList<HumanName> ah = new ArrayList<>();
         ah.add(h);
         practitioner.setName(ah);
-        ArrayList<Identifier> ai = FhirHelper.makeIdentifierArray("https://fhir.nhs.uk/Id/sds-user-id", rx.get(b + EMUdefinitions.SDSUSERID));
+        ArrayList<Identifier> ai = FhirHelper.makeIdentifierArray("https://fhir.nhs.uk/Id/sds-user-id", p.getSdsUserId());
         practitioner.setIdentifier(ai);
     }
     
-    private void doRole(int b, ArrayList<String> rx) {
+    private void doRole(Participant p) {
         role.setId(FhirHelper.makeId());
         ArrayList<Identifier> ai = FhirHelper.makeIdentifierArray("https://fhir.nhs.uk/Id/sds-role-profile-id", 
-                rx.get(b + EMUdefinitions.ROLEPROFILE));
+                p.getRoleProfile());
         role.setIdentifier(ai);
         role.setPractitioner(FhirHelper.makeInternalReference(practitioner));
         role.setOrganization(FhirHelper.makeInternalReference(organisation));
         ContactPoint c = new ContactPoint();
         c.setSystem(ContactPoint.ContactPointSystem.PHONE);
         c.setUse(ContactPoint.ContactPointUse.WORK);
-        c.setValue(rx.get(b + EMUdefinitions.ORGANISATIONTELECOM));
+        c.setValue(p.getOrganisationTelecom());
         ArrayList<ContactPoint> at = new ArrayList<>();
         at.add(c);
         role.setTelecom(at);
     }
     
-    private void doOrg(int b, ArrayList<String> rx) {
+    private void doOrg(Participant p) {
         organisation.setId(FhirHelper.makeId());
         ArrayList<Identifier> ai = FhirHelper.makeIdentifierArray("https://fhir.nhs.uk/Id/ods-organization-code", 
-                rx.get(b + EMUdefinitions.SDSORGANISATIONID));
+                p.getSdsOrganisationId());
         organisation.setIdentifier(ai);
         ContactPoint c = new ContactPoint();
         c.setSystem(ContactPoint.ContactPointSystem.PHONE);
         c.setUse(ContactPoint.ContactPointUse.WORK);
-        c.setValue(rx.get(b + EMUdefinitions.ORGANISATIONTELECOM));
+        c.setValue(p.getOrganisationTelecom());
         organisation.addTelecom(c);
         
         // Note: type - EMU can't provide a FHIR OrganizationType
         
         CodeableConcept cc = new CodeableConcept();
         cc.addCoding(FhirHelper.makeCoding("https://fhir.nhs.uk/R4/CodeSystem/organisation-type", 
-                rx.get(b + EMUdefinitions.ORGANISATIONTYPE), null));
+                p.getOrganisationType(), null));
         ArrayList<CodeableConcept> ac = new ArrayList<>();
         ac.add(cc);
         organisation.setType(ac);
-        organisation.setName(rx.get(b + EMUdefinitions.ORGANISATIONNAME));
+        organisation.setName(p.getOrganisationName());
         
         // address
         
         Address addr = new Address();
-        String l = rx.get(b + EMUdefinitions.ORGANISATIONADDRESSLINE1);
-        if (l.length() > 0) {
-            addr.addLine(l);
-        }
-        l = rx.get(b + EMUdefinitions.ORGANISATIONADDRESSLINE2);
-        if (l.length() > 0) {
-            addr.addLine(l);
-        }
-        l = rx.get(b + EMUdefinitions.ORGANISATIONADDRESSLINE3);
-        if (l.length() > 0) {
-            addr.addLine(l);
-        }
-        l = rx.get(b + EMUdefinitions.ORGANISATIONADDRESSLINE4);
-        if (l.length() > 0) {
+        for (String l : p.getOrganisationAddress()) {
             addr.addLine(l);
         }
-        l = rx.get(b + EMUdefinitions.ORGANISATIONADDRESSLINE5);
-        if (l.length() > 0) {
-            addr.addLine(l);
-        }        
-        addr.setPostalCode(rx.get(b + EMUdefinitions.ORGANISATIONPOSTCODE));
+        addr.setPostalCode(p.getOrganisationPostcode());
         ArrayList<Address> aa = new ArrayList<>();
         aa.add(addr);
         organisation.setAddress(aa);
         // part of (pct)
         Identifier pct = FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/ods-organization-code", 
-                rx.get(b + EMUdefinitions.PCTORGANISATIONSDSID));
+                p.getPctOrganisationId());
         Reference pctref = new Reference();
         pctref.setIdentifier(pct);
         organisation.setPartOf(pctref);
@@ -0,0 +1,189 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import uk.nhs.digital.mait.fhir.util.FhirHelper;
+
+/**
+ * Immutable, typed view of an EMU prescription row and its line items. Each field
+ * the builder uses is read, checked and converted once here, rather than once per
+ * MedicationRequest. Dates are held as milliseconds and handed out as new Date
+ * instances, so that a Prescription can be shared between threads.
+ *
+ * @author Damian Murphy
+ */
+final class Prescription {
+
+    enum TreatmentType {
+        ACUTE("acute", "Acute"),
+        REPEAT("repeat", "Repeat"),
+        REPEATDISPENSING("repeat-dispensing", "Repeat Dispensing");
+
+        private final String code;
+        private final String display;
+
+        TreatmentType(String c, String d) {
+            code = c;
+            display = d;
+        }
+
+        String getCode() { return code; }
+        String getDisplay() { return display; }
+    }
+
+    private static final String GPPRESCRIBING = "0001";
+
+    private final String id;
+    private final String patientId;
+    private final String patientNameTitle;
+    private final String patientGivenName1;
+    private final String patientGivenName2;
+    private final String patientSurname;
+    private final AdministrativeGender patientGender;
+    private final Long patientBirthTime;
+    private final Long patientDeceasedTime;
+    private final String patientPostcode;
+    private final String primaryCareProvider;
+    private final TreatmentType treatmentType;
+    private final String prescriptionType;
+    private final String prescriptionTypeDisplay;
+    private final String nominatedPharmacy;
+    private final String dispensingSitePreference;
+    private final long authoredOn;
+    private final String clinicalStatementId;
+    private final Participant author;
+    private final List<LineItem> items;
+
+    /**
+     * @param pid Prescription id
+     * @param rx Prescription row
+     * @param itemRows Line item rows
+     * @throws Exception If there are no line items, or a field cannot be converted
+     */
+    Prescription(String pid, List<String> rx, List<List<String>> itemRows)
+            throws Exception
+    {
+        if (itemRows == null) {
+            throw new Exception("Prescription " + pid + " has no line items");
+        }
+        id = rx.get(EMUdefinitions.ID);
+        patientId = rx.get(EMUdefinitions.PATIENTID);
+        patientNameTitle = rx.get(EMUdefinitions.PATIENTNAMETITLE);
+        patientGivenName1 = rx.get(EMUdefinitions.PATIENTGIVENNAME1);
+        String g = rx.get(EMUdefinitions.PATIENTGIVENNAME2);
+        patientGivenName2 = (g.length() > 0) ? g : null;
+        patientSurname = rx.get(EMUdefinitions.PATIENTSURNAME);
+        patientGender = toGender(rx.get(EMUdefinitions.PATIENTGENDER));
+        patientBirthTime = toMillis(FhirHelper.makeDate(rx.get(EMUdefinitions.PATIENTBIRTHTIME)));
+        patientDeceasedTime = toMillis(FhirHelper.makeDate(rx.get(EMUdefinitions.PATIENTDECEASEDTIME)));
+        patientPostcode = rx.get(EMUdefinitions.PATIENTADDRESSPOSTCODE);
+        primaryCareProvider = rx.get(EMUdefinitions.PATIENTPRIMARYCAREPROVIDESDSID);
+        treatmentType = toTreatmentType(rx);
+        prescriptionType = rx.get(EMUdefinitions.PRESCRIPTIONTYPE);
+        // TODO: We could do with a general way to resolve displays for MIM vocabularies
+        prescriptionTypeDisplay = prescriptionType.contentEquals(GPPRESCRIBING) ? "General Practitioner Prescribing" : null;
+        String n = rx.get(EMUdefinitions.NOMINATEDPHARMACYID);
+        nominatedPharmacy = (n.length() > 0) ? n : null;
+        dispensingSitePreference = rx.get(EMUdefinitions.DISPENSINGSITEPREFERENCE);
+        // EMU doesn't seem to provide a date for the prescription itself, though it does
+        // the participation times. So use that.
+        authoredOn = FhirHelper.hl7v3ToDate(rx.get(EMUdefinitions.AUTHORPARTICIPATIONTIME)).getTime();
+        clinicalStatementId = rx.get(EMUdefinitions.PRESCRIPTIONCLINICALSTATEMENTID);
+        author = new Participant(EMUdefinitions.AUTHORROLEPROFILE, rx);
+        ArrayList<LineItem> li = new ArrayList<>(itemRows.size());
+        for (List<String> item : itemRows) {
+            li.add(new LineItem(item));
+        }
+        items = List.copyOf(li);
+    }
+
+    String getId() { return id; }
+    String getPatientId() { return patientId; }
+    String getPatientNameTitle() { return patientNameTitle; }
+    String getPatientGivenName1() { return patientGivenName1; }
+
+    /**
+     * @return The second given name, or null if there is none
+     */
+    String getPatientGivenName2() { return patientGivenName2; }
+    String getPatientSurname() { return patientSurname; }
+    AdministrativeGender getPatientGender() { return patientGender; }
+    Date getPatientBirthTime() { return toDate(patientBirthTime); }
+    Date getPatientDeceasedTime() { return toDate(patientDeceasedTime); }
+    String getPatientPostcode() { return patientPostcode; }
+    String getPrimaryCareProvider() { return primaryCareProvider; }
+    TreatmentType getTreatmentType() { return treatmentType; }
+    String getPrescriptionType() { return prescriptionType; }
+
+    /**
+     * @return Display text for the prescription type code, or null if not known
+     */
+    String getPrescriptionTypeDisplay() { return prescriptionTypeDisplay; }
+
+    /**
+     * @return The nominated pharmacy ODS code, or null if there is none
+     */
+    String getNominatedPharmacy() { return nominatedPharmacy; }
+    String getDispensingSitePreference() { return dispensingSitePreference; }
+    Date getAuthoredOn() { return new Date(authoredOn); }
+    String getClinicalStatementId() { return clinicalStatementId; }
+    Participant getAuthor() { return author; }
+
+    /**
+     * @return The line items, unmodifiable
+     */
+    List<LineItem> getItems() { return items; }
+
+    private static AdministrativeGender toGender(String s) {
+        try {
+            switch (Integer.parseInt(s)) {
+                case 0:
+                    return AdministrativeGender.UNKNOWN;
+                case 1:
+                    return AdministrativeGender.MALE;
+                case 2:
+                    return AdministrativeGender.FEMALE;
+            }
+        }
+        catch (NumberFormatException e) {
+            return AdministrativeGender.UNKNOWN;
+        }
+        return AdministrativeGender.OTHER;
+    }
+
+    private static TreatmentType toTreatmentType(List<String> rx) {
+        if (EMUdefinitions.PRESCRIPTIONTREATMENTTYPE >= rx.size()) {
+            return TreatmentType.ACUTE;
+        }
+        String t = rx.get(EMUdefinitions.PRESCRIPTIONTREATMENTTYPE).trim();
+        if ((t.length() == 0) || t.contentEquals("0001")) {
+            return TreatmentType.ACUTE;
+        }
+        return t.contentEquals("0002") ? TreatmentType.REPEAT : TreatmentType.REPEATDISPENSING;
+    }
+
+    private static Long toMillis(Date d) {
+        return (d == null) ? null : d.getTime();
+    }
+
+    private static Date toDate(Long m) {
+        return (m == null) ? null : new Date(m);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.List;
+
+/**
+ * Receives each prescription, with its line items, as it is read from the EMU data.
+ * 
+ * @author Damian Murphy
+ */
+interface PrescriptionHandler {
+    
+    /**
+     * @param pid Prescription id
+     * @param rx Prescription row
+     * @param items Line item rows, or null if the prescription has none
+     * @throws Exception If the prescription cannot be handled
+     */
+    void handle(String pid, List<String> rx, List<List<String>> items)
+            throws Exception;
+}
@@ -0,0 +1,140 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import uk.nhs.digital.mait.fhir.util.UTF8CharacterSubstituter;
+
+/**
+ * Selects prescriptions by the values of their prescription row fields. A filter is
+ * one or more conditions separated by ";", all of which must hold. Each condition is
+ * a prescription column name (as in EMUdefinitions), "=" or "!=", and one or more
+ * values separated by "|": the field must (or must not) be one of the values. An
+ * empty value matches an empty field. For example:
+ *
+ * PRESCRIPTIONTREATMENTTYPE=0003;NOMINATEDPHARMACYID!=
+ *
+ * A raw row can be checked before it is split or has its tag substitutions done:
+ * only the fields named in the filter are found and substituted.
+ *
+ * @author Damian Murphy
+ */
+class RowFilter {
+
+    private final String expression;
+    private final int[] fields;
+    private final boolean[] negated;
+    private final ArrayList<HashSet<String>> values = new ArrayList<>();
+
+    private RowFilter(String e, int[] f, boolean[] n) {
+        expression = e;
+        fields = f;
+        negated = n;
+    }
+
+    /**
+     * @param e The filter expression
+     * @return The filter
+     * @throws Exception If the expression is not valid
+     */
+    static RowFilter parse(String e)
+            throws Exception
+    {
+        List<String> names = Arrays.asList(EMUdefinitions.PRESCRIPTIONFIELDS);
+        ArrayList<String> conditions = new ArrayList<>();
+        for (String c : e.split(";")) {
+            if (!c.trim().isEmpty()) {
+                conditions.add(c.trim());
+            }
+        }
+        if (conditions.isEmpty()) {
+            throw new Exception("Empty filter");
+        }
+        RowFilter f = new RowFilter(e.trim(), new int[conditions.size()], new boolean[conditions.size()]);
+        for (int i = 0; i < conditions.size(); i++) {
+            String c = conditions.get(i);
+            int eq = c.indexOf('=');
+            if (eq < 1) {
+                throw new Exception("Invalid filter condition " + c + ": should be NAME=value|value... or NAME!=value|value...");
+            }
+            f.negated[i] = (c.charAt(eq - 1) == '!');
+            String name = c.substring(0, f.negated[i] ? eq - 1 : eq).trim().toUpperCase();
+            f.fields[i] = names.indexOf(name);
+            if (f.fields[i] == -1) {
+                throw new Exception("Unknown prescription field " + name + " in filter");
+            }
+            HashSet<String> v = new HashSet<>();
+            // Keep trailing empty values, so that "NAME=" matches an empty field
+            for (String s : c.substring(eq + 1).split("\\|", -1)) {
+                v.add(s.trim());
+            }
+            f.values.add(v);
+        }
+        return f;
+    }
+
+    /**
+     * @param row Prescription row
+     * @return True if the row is selected
+     */
+    boolean accepts(List<String> row) {
+        for (int i = 0; i < fields.length; i++) {
+            String v = (fields[i] < row.size()) ? row.get(fields[i]) : "";
+            if (values.get(i).contains(v) == negated[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param line Prescription row as read from the file
+     * @return True if the row is selected
+     * @throws Exception If a field cannot be substituted
+     */
+    boolean accepts(String line)
+            throws Exception
+    {
+        for (int i = 0; i < fields.length; i++) {
+            String v = UTF8CharacterSubstituter.doSubstitutions(field(line, fields[i]));
+            if (values.get(i).contains(v) == negated[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The expression, for recording what data was loaded with this filter
+     */
+    @Override
+    public String toString() { return expression; }
+
+    private static String field(String line, int n) {
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0) {
+                return "";
+            }
+        }
+        int end = line.indexOf('\t', start);
+        return (end == -1) ? line.substring(start) : line.substring(start, end);
+    }
+}
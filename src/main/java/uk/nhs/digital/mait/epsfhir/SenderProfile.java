@@ -0,0 +1,132 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import org.hl7.fhir.r4.model.MessageHeader.MessageSourceComponent;
+import uk.nhs.digital.mait.fhir.util.FhirHelper;
+
+/**
+ * A named sender: the ASID, ODS code and endpoint URL that go into the MessageHeader
+ * source, and the directory its bundles are written to. Several profiles let a single
+ * run make the same bundles for more than one sender, reading the input files once.
+ * 
+ * Profiles are listed by name in the "profiles" property, and each is configured with
+ * "profile.name.asid", "profile.name.odscode", "profile.name.url" and "profile.name.directory"
+ * properties. The sender values default to the global asid, odscode and url, and the
+ * directory to a sub-directory with the profile name in the output directory.
+ * 
+ * @author Damian Murphy
+ */
+class SenderProfile {
+
+    static final String PROFILES = "uk.nhs.digital.mait.epsfhir.profiles";
+    
+    private static final String PREFIX = "uk.nhs.digital.mait.epsfhir.profile.";
+    
+    private final String name;
+    private final String asid;
+    private final String odsCode;
+    private final String url;
+    private final String directory;
+    private final DirectBundleSerialiser direct;
+    
+    /**
+     * @param n Profile name
+     * @param a Sender ASID
+     * @param o Sender ODS code
+     * @param u Sender endpoint URL
+     * @param d Output directory
+     */
+    SenderProfile(String n, String a, String o, String u, String d) {
+        name = n;
+        asid = a;
+        odsCode = o;
+        url = u;
+        directory = d;
+        direct = new DirectBundleSerialiser(asid, odsCode, url);
+    }
+    
+    String getName() { return name; }
+    String getDirectory() { return directory; }
+    DirectBundleSerialiser getSerialiser() { return direct; }
+    
+    /**
+     * @return A new MessageHeader source for this sender
+     */
+    MessageSourceComponent makeSource() {
+        MessageSourceComponent s = new MessageSourceComponent();
+        FhirHelper.makeExtension(s.addExtension(), 
+                "https://fhir.nhs.uk/R4/StructureDefinition/Extension-spineEndpoint", 
+                FhirHelper.makeIdentifier("https://fhir.nhs.uk/Id/spine-ASID", asid));
+        s.setName(odsCode);
+        s.setEndpoint(url);
+        return s;
+    }
+    
+    /**
+     * Read the profiles named in the "profiles" property. Default directories are
+     * made if they do not exist.
+     * 
+     * @param a Default sender ASID
+     * @param o Default sender ODS code
+     * @param u Default sender endpoint URL
+     * @param out Output directory, or null if there is none
+     * @return The profiles, or null if the property is not set
+     * @throws Exception If a profile has no directory, or two profiles share a name or directory
+     */
+    static List<SenderProfile> fromProperties(String a, String o, String u, String out)
+            throws Exception
+    {
+        String p = System.getProperty(PROFILES);
+        if ((p == null) || p.trim().isEmpty()) {
+            return null;
+        }
+        ArrayList<SenderProfile> profiles = new ArrayList<>();
+        HashSet<String> names = new HashSet<>();
+        HashSet<File> directories = new HashSet<>();
+        for (String n : p.split(",")) {
+            n = n.trim();
+            if (n.isEmpty()) {
+                continue;
+            }
+            if (!names.add(n)) {
+                throw new Exception("Profile " + n + " is listed more than once in " + PROFILES);
+            }
+            String d = System.getProperty(PREFIX + n + ".directory");
+            if ((d == null) || d.trim().isEmpty()) {
+                if (out == null) {
+                    throw new Exception("Profile " + n + " needs " + PREFIX + n + ".directory, or an output directory");
+                }
+                File f = new File(out, n);
+                if (!f.isDirectory() && !f.mkdir()) {
+                    throw new Exception("Cannot make output directory " + f + " for profile " + n);
+                }
+                d = f.getPath();
+            }
+            d = d.trim();
+            if (!directories.add(new File(d).getCanonicalFile())) {
+                throw new Exception("Profile " + n + " has the same directory as another profile: " + d);
+            }
+            profiles.add(new SenderProfile(n, System.getProperty(PREFIX + n + ".asid", a), 
+                    System.getProperty(PREFIX + n + ".odscode", o), System.getProperty(PREFIX + n + ".url", u), d));
+        }
+        return profiles.isEmpty() ? null : profiles;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.epsfhir;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One partition of a run split over several processes ("--shard i/N"). Each
+ * prescription id belongs to exactly one shard, decided from its hash alone, so
+ * separate processes reading the same input files need no coordination. Each
+ * shard lists the prescriptions it wrote in a segment file in its output
+ * directory, and merge() combines the segments into a single index.
+ * 
+ * @author Damian Murphy
+ */
+class Shard {
+
+    static final String INDEX = "epsfhir-index.txt";
+    
+    private static final Pattern SEGMENT = Pattern.compile("epsfhir-shard-(\\d+)-of-(\\d+)\\.txt");
+    
+    private final int index;
+    private final int count;
+    private final ConcurrentLinkedQueue<String> written = new ConcurrentLinkedQueue<>();
+    
+    Shard(int i, int n) {
+        index = i;
+        count = n;
+    }
+    
+    /**
+     * @param s Shard in the form "i/N", where i counts from zero
+     * @return The shard
+     * @throws Exception If the form is not valid
+     */
+    static Shard parse(String s)
+            throws Exception
+    {
+        int slash = s.indexOf('/');
+        try {
+            int i = Integer.parseInt(s.substring(0, slash).trim());
+            int n = Integer.parseInt(s.substring(slash + 1).trim());
+            if ((n > 0) && (i >= 0) && (i < n)) {
+                return new Shard(i, n);
+            }
+        }
+        catch (NumberFormatException | StringIndexOutOfBoundsException e) {}
+        throw new Exception("Invalid shard " + s + ": should be i/N with 0 <= i < N");
+    }
+
+    int getIndex() { return index; }
+    int getCount() { return count; }
+    
+    /**
+     * @param pid Prescription id
+     * @return True if the prescription belongs to this shard
+     */
+    boolean owns(String pid) {
+        // String.hashCode() is specified, so every process agrees
+        return Math.floorMod(pid.hashCode(), count) == index;
+    }
+    
+    /**
+     * Check a raw input row without splitting it or substituting the rest of it.
+     * 
+     * @param line Prescription or line item row
+     * @return True if the row is for a prescription in this shard
+     * @throws Exception If the id cannot be read
+     */
+    boolean ownsLine(String line)
+            throws Exception
+    {
+        return owns(EMUstream.idOf(line));
+    }
+    
+    /**
+     * Record that the output for a prescription is in place.
+     * 
+     * @param pid Prescription id
+     */
+    void written(String pid) {
+        written.add(pid);
+    }
+    
+    /**
+     * @return Segment file name for this shard
+     */
+    String getSegmentName() { return "epsfhir-shard-" + index + "-of-" + count + ".txt"; }
+    
+    /**
+     * @return Incremental manifest file name for this shard, so that shards sharing
+     * an output directory each keep their own
+     */
+    String getManifestName() { return "epsfhir-manifest-" + index + "-of-" + count + ".txt"; }
+    
+    /**
+     * Write this shard's segment, listing the prescriptions it wrote.
+     * 
+     * @param od Output directory
+     * @throws Exception If the segment cannot be written
+     */
+    void writeSegment(String od)
+            throws Exception
+    {
+        ArrayList<String> ids = new ArrayList<>(written);
+        ids.sort(null);
+        File tmp = new File(od, getSegmentName() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (String pid : ids) {
+                bw.write(pid);
+                bw.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), new File(od, getSegmentName()).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Combine the shard segments found in the given directories into one index,
+     * written to the first directory. Each line of the index is a prescription id,
+     * the shard which wrote it, and the directory its segment was found in.
+     * 
+     * @param dirs Output directories of the shards
+     * @return Number of prescriptions in the index
+     * @throws Exception If a segment is missing or the segments disagree
+     */
+    static int merge(String[] dirs)
+            throws Exception
+    {
+        int n = -1;
+        TreeMap<Integer,File> segments = new TreeMap<>();
+        for (String d : dirs) {
+            File[] files = new File(d).listFiles();
+            if (files == null) {
+                throw new Exception("Cannot read directory " + d);
+            }
+            for (File f : files) {
+                Matcher m = SEGMENT.matcher(f.getName());
+                if (!m.matches()) {
+                    continue;
+                }
+                int i = Integer.parseInt(m.group(1));
+                int c = Integer.parseInt(m.group(2));
+                if ((n != -1) && (c != n)) {
+                    throw new Exception("Segments from runs with different shard counts: " + c + " and " + n);
+                }
+                n = c;
+                File other = segments.put(i, f);
+                if (other != null) {
+                    throw new Exception("Shard " + i + " has more than one segment: " + other + " and " + f);
+                }
+            }
+        }
+        if (n == -1) {
+            throw new Exception("No shard segments found");
+        }
+        if (segments.size() != n) {
+            ArrayList<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (!segments.containsKey(i)) {
+                    missing.add(i);
+                }
+            }
+            throw new Exception("Missing segments for shards " + missing + " of " + n);
+        }
+        TreeMap<String,String> index = new TreeMap<>();
+        for (Map.Entry<Integer,File> e : segments.entrySet()) {
+            String where = e.getKey() + "\t" + e.getValue().getParent();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(e.getValue()), 
+                    StandardCharsets.UTF_8))) {
+                @SuppressWarnings("UnusedAssignment")
+                String pid = null;
+                while ((pid = br.readLine()) != null) {
+                    if (!pid.isEmpty() && (index.put(pid, where) != null)) {
+                        throw new Exception("Prescription " + pid + " is in more than one segment");
+                    }
+                }
+            }
+        }
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dirs[0], INDEX)), 
+                StandardCharsets.UTF_8))) {
+            for (Map.Entry<String,String> e : index.entrySet()) {
+                bw.write(e.getKey());
+                bw.write('\t');
+                bw.write(e.getValue());
+                bw.newLine();
+            }
+        }
+        return index.size();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes bundles into compressed archives: either gzip'd NDJSON files (with the
+ * same roll-over rules as NdjsonBundleSink, applied to the uncompressed size) or a
+ * single zip archive with one entry per bundle, named from its id. Compression runs
+ * on its own thread, fed through a bounded queue, so it does not hold up the
+ * threads building and encoding bundles.
+ * 
+ * @author Damian Murphy
+ */
+public class ArchiveBundleSink 
+        extends QueuedBundleSink
+{
+    private static final int BUFFERSIZE = 1048576;
+    private static final int BATCHSIZE = 64;
+    
+    private RollingOutput ndjson = null;
+    private ZipOutputStream zip = null;
+    private boolean stdout = false;
+    
+    /**
+     * Make a sink writing gzip'd NDJSON.
+     * 
+     * @param od Output directory
+     * @param s Write to standard output (no file roll-over)
+     * @param p Parsers. These must be JSON parsers without pretty-printing
+     * @param depth Queue depth
+     * @param mr Maximum records per file, or zero for no limit
+     * @param mb Maximum uncompressed bytes per file, or zero for no limit
+     * @return The sink
+     */
+    public static ArchiveBundleSink gzip(String od, boolean s, ParserPool p, int depth, long mr, long mb) {
+        if (p.isXml() || p.isPrettyPrint()) {
+            throw new IllegalArgumentException("NDJSON output needs compact JSON parsers");
+        }
+        ArchiveBundleSink a = new ArchiveBundleSink(p, depth);
+        a.ndjson = new RollingOutput(od, s, "Bundle", ".ndjson.gz", true, mr, mb);
+        a.start();
+        return a;
+    }
+    
+    /**
+     * Make a sink writing a zip archive, "Bundles.zip" in the output directory.
+     * 
+     * @param od Output directory
+     * @param s Write the archive to standard output
+     * @param p Parsers, which determine the format of each entry
+     * @param depth Queue depth
+     * @return The sink
+     * @throws Exception If the archive cannot be created
+     */
+    public static ArchiveBundleSink zip(String od, boolean s, ParserPool p, int depth)
+            throws Exception
+    {
+        ArchiveBundleSink a = new ArchiveBundleSink(p, depth);
+        OutputStream os = s ? System.out : new FileOutputStream(new File(od, "Bundles.zip"));
+        a.zip = new ZipOutputStream(new BufferedOutputStream(os, BUFFERSIZE));
+        a.stdout = s;
+        a.start();
+        return a;
+    }
+    
+    private ArchiveBundleSink(ParserPool p, int depth) {
+        super(p, depth, 1, BATCHSIZE, "archive");
+    }
+
+    @Override
+    protected void consume(ArrayList<Encoded> batch) 
+            throws Exception
+    {
+        for (Encoded e : batch) {
+            if (ndjson != null) {
+                ndjson.write(e.data);
+            } else {
+                zip.putNextEntry(new ZipEntry(e.id + parsers.getFileExtension()));
+                zip.write(e.data);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    @Override
+    protected void finish() 
+            throws Exception
+    {
+        if (ndjson != null) {
+            ndjson.close();
+        } else if (stdout) {
+            zip.finish();
+            zip.flush();
+        } else {
+            zip.close();
+        }
+    }
+}
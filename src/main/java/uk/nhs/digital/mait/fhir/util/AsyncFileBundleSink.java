@@ -0,0 +1,103 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Writes each bundle to a file of its own in the output directory, as FileBundleSink
+ * does, but on background writer threads fed through a bounded queue. The threads
+ * building bundles hand over the encoded bytes and carry on, so encoding and disk
+ * latency overlap; when the disk cannot keep up, the queue bound holds them back.
+ * 
+ * Each writer thread takes up to a batch of bundles at a time. If sync is set, the
+ * files in a batch are all written before any are forced to disk, and the directory
+ * is then forced once for the batch, so a completed batch survives a crash.
+ * 
+ * @author Damian Murphy
+ */
+public class AsyncFileBundleSink 
+        extends QueuedBundleSink
+{
+    private static final int BATCHSIZE = 64;
+    
+    private final File directory;
+    private final boolean sync;
+    
+    /**
+     * @param od Output directory, or null for the current directory
+     * @param p Parsers, which determine the output format
+     * @param depth Maximum number of encoded bundles waiting to be written
+     * @param threads Number of writer threads
+     * @param s Force each batch of files to disk before taking the next
+     */
+    public AsyncFileBundleSink(String od, ParserPool p, int depth, int threads, boolean s) {
+        super(p, depth, threads, BATCHSIZE, "writer");
+        directory = new File((od == null) ? "." : od);
+        sync = s;
+        start();
+    }
+
+    @Override
+    protected void consume(ArrayList<Encoded> batch) 
+            throws Exception
+    {
+        String ext = parsers.getFileExtension();
+        FileChannel[] open = new FileChannel[batch.size()];
+        try {
+            for (int i = 0; i < open.length; i++) {
+                Encoded e = batch.get(i);
+                open[i] = FileChannel.open(new File(directory, e.id + ext).toPath(), StandardOpenOption.WRITE, 
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                ByteBuffer bb = ByteBuffer.wrap(e.data);
+                while (bb.hasRemaining()) {
+                    open[i].write(bb);
+                }
+                if (!sync) {
+                    open[i].close();
+                    open[i] = null;
+                }
+            }
+            if (sync) {
+                for (FileChannel fc : open) {
+                    fc.force(false);
+                }
+                syncDirectory();
+            }
+        }
+        finally {
+            for (FileChannel fc : open) {
+                if (fc != null) {
+                    fc.close();
+                }
+            }
+        }
+    }
+    
+    private void syncDirectory() {
+        // So that the new directory entries are durable too. Not every platform
+        // allows a directory to be opened, and there it is left to the file system.
+        try (FileChannel fc = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            fc.force(true);
+        }
+        catch (IOException e) {}
+    }
+}
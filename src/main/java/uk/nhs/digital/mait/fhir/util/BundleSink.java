@@ -0,0 +1,62 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Destination for serialised bundles. Implementations must allow write() to be
+ * called from several threads at once, and must have finished with the Bundle
+ * instance (not just queued it) by the time write() returns, so that the caller
+ * is free to re-use or modify it.
+ * 
+ * @author Damian Murphy
+ */
+public interface BundleSink 
+        extends AutoCloseable
+{
+    /**
+     * Write a bundle.
+     * 
+     * @param id Identifier for the bundle, for example used as the file name
+     * @param b The Bundle
+     * @throws Exception If the bundle cannot be written
+     */
+    void write(String id, Bundle b) throws Exception;
+    
+    /**
+     * Write a bundle which the caller has already encoded, in the format and with
+     * the pretty-print setting of the parsers returned by getParsers().
+     * 
+     * @param id Identifier for the bundle, for example used as the file name
+     * @param encoded The encoded bundle, as UTF-8
+     * @throws Exception If the bundle cannot be written
+     */
+    void write(String id, byte[] encoded) throws Exception;
+    
+    /**
+     * @return The parsers this sink encodes bundles with
+     */
+    ParserPool getParsers();
+    
+    /**
+     * Complete any pending output and release resources.
+     * 
+     * @throws Exception If pending output could not be written
+     */
+    @Override
+    void close() throws Exception;
+}
@@ -0,0 +1,80 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Makes an R4 FhirContext and warms it up on a background thread, so that the
+ * model scanning and parser set-up HAPI does on first use overlap with other
+ * start-up work such as loading the input files.
+ * 
+ * HAPI scans model classes lazily, so only the resource types warmed here (and
+ * the datatypes they use) are introspected. This is cheaper than a context built
+ * from an explicit list of resource types, which scans all of them, and their
+ * datatypes, eagerly in its constructor.
+ * 
+ * @author Damian Murphy
+ */
+public class FhirContextWarmer {
+
+    /**
+     * Start making and warming a context.
+     * 
+     * @param types The resource types which will be encoded
+     * @param xml Warm the XML parser (JSON if false)
+     * @return The context, once it is warm
+     */
+    public static CompletableFuture<FhirContext> start(List<Class<? extends Resource>> types, boolean xml) {
+        CompletableFuture<FhirContext> f = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                f.complete(warm(types, xml));
+            }
+            catch (Throwable e) {
+                f.completeExceptionally(e);
+            }
+        }, "fhir-warmup");
+        t.setDaemon(true);
+        t.start();
+        return f;
+    }
+    
+    private static FhirContext warm(List<Class<? extends Resource>> types, boolean xml)
+            throws Exception
+    {
+        // Not DEFERRED_MODEL_SCANNING, which is not safe when several threads first
+        // encode at the same time
+        FhirContext ctx = FhirContext.forR4();
+        Bundle b = new Bundle();
+        for (Class<? extends Resource> c : types) {
+            ctx.getResourceDefinition(c);
+            if (c != Bundle.class) {
+                b.addEntry().setResource(c.getDeclaredConstructor().newInstance());
+            }
+        }
+        // Encoding loads and initialises the parser's classes
+        IParser p = xml ? ctx.newXmlParser() : ctx.newJsonParser();
+        p.setPrettyPrint(true);
+        p.encodeResourceToString(b);
+        return ctx;
+    }
+}
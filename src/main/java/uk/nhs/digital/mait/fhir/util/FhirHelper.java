@@ -16,16 +16,17 @@
 package uk.nhs.digital.mait.fhir.util;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.UUID;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Extension;
@@ -41,9 +42,19 @@ import org.hl7.fhir.r4.model.Type;
  */
 public class FhirHelper {
 
+    /**
+     * @deprecated Not thread-safe. Use HL7v3DateParser.
+     */
+    @Deprecated
     public static final SimpleDateFormat HL7v3DATEFORMAT = new SimpleDateFormat("YYYYMMdd");
+    /**
+     * @deprecated Not thread-safe. Use HL7v3DateParser.
+     */
+    @Deprecated
     public static final SimpleDateFormat HL7v3TIMEFORMAT = new SimpleDateFormat("YYYYMMddHHMMss");
     
+    private static volatile IdGenerator idGenerator = IdGenerator.secure();
+    
     /**
      * Write the given bundle. Forces UTF-8. 
      * 
@@ -56,50 +67,88 @@ public class FhirHelper {
      * @param pp Pretty print
      * @throws Exception If something goes wrong
      */
-    @SuppressWarnings("ConvertToTryWithResources")
     public static final void write(String fn, String od, Bundle b, FhirContext ctx, boolean stdout, boolean xml, boolean pp)
             throws Exception
     {
-        @SuppressWarnings("UnusedAssignment")
-        IParser parser = null;
-        @SuppressWarnings("UnusedAssignment")
-        String filename = null;
-        if (xml) {
-            parser = ctx.newXmlParser();
-            filename = fn + ".xml";            
-        } else {
-            parser = ctx.newJsonParser();
-            filename = fn + ".json";
+        write(fn, od, b, new ParserPool(ctx, xml, pp), stdout);
+    }
+    
+    /**
+     * Write the given bundle using the calling thread's parser from the given pool,
+     * encoding straight to the output file. For standard output it is encoded first,
+     * and only written while holding the System.out lock. Forces UTF-8.
+     * 
+     * @param fn File name
+     * @param od Output directory
+     * @param b The Bundle
+     * @param pool Parsers, which also determine the format
+     * @param stdout Write to standard output (System.out)
+     * @throws Exception If something goes wrong
+     */
+    public static final void write(String fn, String od, Bundle b, ParserPool pool, boolean stdout)
+            throws Exception
+    {
+        if (stdout) {
+            write(fn, od, pool.encode(b), pool.getFileExtension(), true);
+            return;
+        }
+        String filename = fn + pool.getFileExtension();
+        File f = (od == null) ? new File(filename) : new File(od, filename);
+        // Counted and timed below the buffer, so WRITE is the time in the file writes
+        CountingOutputStream cos = new CountingOutputStream(new FileOutputStream(f));
+        try (OutputStream os = new BufferedOutputStream(cos)) {
+            pool.encode(b, os);
         }
-        parser.setPrettyPrint(pp);
-        String serialised = parser.encodeResourceToString(b);
+        PipelineMetrics.record(PipelineMetrics.Stage.WRITE, cos.nanos);
+        PipelineMetrics.bytesWritten(cos.count);
+    }
+    
+    /**
+     * Write an already-encoded bundle, as write(String, String, Bundle, ParserPool, boolean)
+     * does for one it encodes itself.
+     * 
+     * @param fn File name
+     * @param od Output directory
+     * @param encoded The encoded bundle, as UTF-8
+     * @param ext File name extension, including the leading "."
+     * @param stdout Write to standard output (System.out)
+     * @throws Exception If something goes wrong
+     */
+    public static final void write(String fn, String od, byte[] encoded, String ext, boolean stdout)
+            throws Exception
+    {
+        long t = PipelineMetrics.start();
         if (stdout) {
-            OutputStreamWriter systemout = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
-            systemout.write(fn);
-            systemout.write(System.getProperty("line.separator"));
-            systemout.write(serialised);
-            systemout.flush();
+            synchronized (System.out) {
+                System.out.write((fn + System.getProperty("line.separator")).getBytes(StandardCharsets.UTF_8));
+                System.out.write(encoded);
+                System.out.flush();
+            }
         } else {
-            @SuppressWarnings("UnusedAssignment")
-            File f = null;
-            if (od == null) {
-                f = new File(filename);
-            } else {
-                f = new File(od, filename);
+            File f = (od == null) ? new File(fn + ext) : new File(od, fn + ext);
+            try (FileOutputStream fos = new FileOutputStream(f)) {
+                fos.write(encoded);
             }
-            OutputStreamWriter osw = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8);
-            osw.write(serialised);
-            osw.flush();
-            osw.close();
-        }        
+        }
+        PipelineMetrics.stop(PipelineMetrics.Stage.WRITE, t);
+        PipelineMetrics.bytesWritten(encoded.length);
     }
     
     /**
-     * Make an un-decorated (i.e. no "urn:uuid:" prefix) lower-case random UUID
+     * Make an un-decorated (i.e. no "urn:uuid:" prefix) lower-case UUID, using the
+     * current id generator.
      * 
      * @return The new UUID
      */
-    public static final String makeId() { return UUID.randomUUID().toString().toLowerCase(); }
+    public static final String makeId() { return idGenerator.makeId(); }
+    
+    /**
+     * Set the strategy used by makeId(). The default is IdGenerator.secure().
+     * 
+     * @param g The id generator
+     */
+    public static final void setIdGenerator(IdGenerator g) { idGenerator = g; }
+    public static final IdGenerator getIdGenerator() { return idGenerator; }
     
     /**
      * Create a Reference for the given resource, adding a lower-case-UUID id
@@ -200,7 +249,8 @@ public class FhirHelper {
     
     /**
      * Parses an HL7v3 date/time format string and returns it as a Date. If this
-     * operation fails, the current date is returned.
+     * operation fails, the current date is returned. Safe to call from multiple
+     * threads.
      * 
      * @param s
      * @return
@@ -210,7 +260,7 @@ public class FhirHelper {
             return new Date();
         }
         try {
-            return HL7v3TIMEFORMAT.parse(s);            
+            return HL7v3DateParser.parse(s);            
         }
         catch (ParseException e) {
             return new Date();
@@ -218,7 +268,9 @@ public class FhirHelper {
     }
     
     /**
-     * Parses the given string as YYYYMMdd and returns it
+     * Parses the given string as an HL7v3 date (YYYYMMDD, or any of the other
+     * precisions accepted by HL7v3DateParser) and returns it. Safe to call from
+     * multiple threads.
      * 
      * @param s
      * @return
@@ -230,7 +282,7 @@ public class FhirHelper {
         if ((s == null) || (s.trim().length() == 0)) {
             return null;
         }
-        Date d = HL7v3DATEFORMAT.parse(s);
+        Date d = HL7v3DateParser.parse(s);
         return d;
     }
     
@@ -247,4 +299,50 @@ public class FhirHelper {
         hc.setFullUrl("urn:uuid:" + r.getId());
     }
     
+    /**
+     * Passes writes through, counting the bytes and the time spent writing.
+     */
+    private static class CountingOutputStream 
+            extends FilterOutputStream
+    {
+        private long count = 0;
+        private long nanos = 0;
+        
+        private CountingOutputStream(OutputStream os) {
+            super(os);
+        }
+        
+        @Override
+        public void write(int b) 
+                throws IOException
+        {
+            long t = PipelineMetrics.start();
+            out.write(b);
+            count++;
+            nanos += elapsed(t);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) 
+                throws IOException
+        {
+            long t = PipelineMetrics.start();
+            out.write(b, off, len);
+            count += len;
+            nanos += elapsed(t);
+        }
+        
+        @Override
+        public void close() 
+                throws IOException
+        {
+            long t = PipelineMetrics.start();
+            super.close();
+            nanos += elapsed(t);
+        }
+        
+        private static long elapsed(long t) {
+            return (t == 0) ? 0 : System.nanoTime() - t;
+        }
+    }
 }
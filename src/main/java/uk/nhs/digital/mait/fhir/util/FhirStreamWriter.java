@@ -0,0 +1,453 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Writes FHIR JSON or XML directly, element by element, without going through the
+ * HAPI object model. The caller is responsible for giving elements in the order the
+ * FHIR specification requires, and for not starting complex elements which will
+ * have no content. Primitive values which are null or empty are left out, as HAPI
+ * does. Output layout, including pretty-printing, follows that of the HAPI parsers.
+ * 
+ * Element names, resource types and extension URLs are written as given, without
+ * escaping, so should be constants. Values are escaped.
+ * 
+ * Not thread-safe: use one instance per bundle.
+ * 
+ * @author Damian Murphy
+ */
+public abstract class FhirStreamWriter {
+
+    private static final int INITIALSIZE = 8192;
+    
+    protected final StringBuilder out = new StringBuilder(INITIALSIZE);
+    protected final boolean prettyPrint;
+    
+    protected FhirStreamWriter(boolean pp) {
+        prettyPrint = pp;
+    }
+    
+    /**
+     * @param p Parsers giving the format and pretty-print setting to follow
+     * @return A writer producing the same format as the given parsers
+     */
+    public static FhirStreamWriter forParsers(ParserPool p) {
+        return p.isXml() ? new Xml(p.isPrettyPrint()) : new Json(p.isPrettyPrint());
+    }
+    
+    /**
+     * Start a resource.
+     * 
+     * @param name Element holding the resource, for example "resource" in a Bundle entry, or null for the root
+     * @param type Resource type
+     * @return This writer
+     */
+    public abstract FhirStreamWriter startResource(String name, String type);
+    public abstract FhirStreamWriter endResource();
+    public abstract FhirStreamWriter startObject(String name);
+    public abstract FhirStreamWriter endObject();
+    
+    /**
+     * Start a repeating element. Each repeat is written between startItem() and
+     * endItem(), or startExtension() and endItem() for extensions.
+     * 
+     * @param name Element name
+     * @return This writer
+     */
+    public abstract FhirStreamWriter startArray(String name);
+    public abstract FhirStreamWriter startItem();
+    public abstract FhirStreamWriter startExtension(String url);
+    public abstract FhirStreamWriter endItem();
+    public abstract FhirStreamWriter endArray();
+    
+    /**
+     * Write a primitive string, code, uri or date value. Ignored if the value is null
+     * or empty.
+     * 
+     * @param name Element name
+     * @param v Value
+     * @return This writer
+     */
+    public abstract FhirStreamWriter value(String name, String v);
+    
+    /**
+     * Write a primitive numeric value. This is not quoted in JSON.
+     * 
+     * @param name Element name
+     * @param v Value, as it is to appear
+     * @return This writer
+     */
+    public abstract FhirStreamWriter number(String name, String v);
+    
+    /**
+     * Write a repeating primitive string element, leaving out any null or empty values,
+     * and the element itself if none are left.
+     * 
+     * @param name Element name
+     * @param v Values
+     * @return This writer
+     */
+    public abstract FhirStreamWriter values(String name, List<String> v);
+    
+    /**
+     * @return The output so far, as UTF-8
+     */
+    public byte[] toBytes() {
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    @Override
+    public String toString() { return out.toString(); }
+
+    private static boolean isEmpty(String v) {
+        return (v == null) || v.isEmpty();
+    }
+    
+    private static class Json
+            extends FhirStreamWriter
+    {
+        private static final String HEX = "0123456789abcdef";
+        
+        // One entry per open object or array: whether anything has been written in it yet
+        private final ArrayDeque<Boolean> first = new ArrayDeque<>();
+        private int indent = 0;
+        
+        Json(boolean pp) {
+            super(pp);
+        }
+        
+        private void newline() {
+            if (prettyPrint) {
+                out.append('\n');
+                for (int i = 0; i < indent; i++) {
+                    out.append("  ");
+                }
+            }
+        }
+        
+        private void separator() {
+            if (!first.isEmpty() && !first.pop()) {
+                out.append(',');
+            }
+            first.push(Boolean.FALSE);
+        }
+        
+        private void property(String name) {
+            separator();
+            newline();
+            out.append('"').append(name).append(prettyPrint ? "\": " : "\":");
+        }
+        
+        private void open(char c) {
+            out.append(c);
+            first.push(Boolean.TRUE);
+        }
+        
+        private void quote(String v) {
+            out.append('"');
+            for (int i = 0; i < v.length(); i++) {
+                char c = v.charAt(i);
+                switch (c) {
+                    case '"':
+                        out.append("\\\"");
+                        break;
+                    case '\\':
+                        out.append("\\\\");
+                        break;
+                    case '\n':
+                        out.append("\\n");
+                        break;
+                    case '\r':
+                        out.append("\\r");
+                        break;
+                    case '\t':
+                        out.append("\\t");
+                        break;
+                    case '\b':
+                        out.append("\\b");
+                        break;
+                    case '\f':
+                        out.append("\\f");
+                        break;
+                    default:
+                        if (c < ' ') {
+                            out.append("\\u00").append(HEX.charAt(c >> 4)).append(HEX.charAt(c & 0xf));
+                        } else {
+                            out.append(c);
+                        }
+                }
+            }
+            out.append('"');
+        }
+
+        @Override
+        public FhirStreamWriter startResource(String name, String type) {
+            if (name != null) {
+                property(name);
+            }
+            open('{');
+            indent++;
+            return value("resourceType", type);
+        }
+
+        @Override
+        public FhirStreamWriter endResource() {
+            return endObject();
+        }
+
+        @Override
+        public FhirStreamWriter startObject(String name) {
+            property(name);
+            open('{');
+            indent++;
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter endObject() {
+            first.pop();
+            indent--;
+            newline();
+            out.append('}');
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter startArray(String name) {
+            property(name);
+            open('[');
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter startItem() {
+            separator();
+            if (prettyPrint) {
+                out.append(' ');
+            }
+            open('{');
+            indent++;
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter startExtension(String url) {
+            return startItem().value("url", url);
+        }
+
+        @Override
+        public FhirStreamWriter endItem() {
+            return endObject();
+        }
+
+        @Override
+        public FhirStreamWriter endArray() {
+            first.pop();
+            out.append(prettyPrint ? " ]" : "]");
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter value(String name, String v) {
+            if (!isEmpty(v)) {
+                property(name);
+                quote(v);
+            }
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter number(String name, String v) {
+            property(name);
+            out.append(v);
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter values(String name, List<String> v) {
+            boolean started = false;
+            for (String s : v) {
+                if (isEmpty(s)) {
+                    continue;
+                }
+                if (started) {
+                    out.append(prettyPrint ? ", " : ",");
+                } else {
+                    property(name);
+                    out.append(prettyPrint ? "[ " : "[");
+                    started = true;
+                }
+                quote(s);
+            }
+            if (started) {
+                out.append(prettyPrint ? " ]" : "]");
+            }
+            return this;
+        }
+    }
+    
+    private static class Xml
+            extends FhirStreamWriter
+    {
+        private static final String NAMESPACE = "http://hl7.org/fhir";
+        
+        private final ArrayDeque<String> elements = new ArrayDeque<>();
+        private final ArrayDeque<String> arrays = new ArrayDeque<>();
+        
+        Xml(boolean pp) {
+            super(pp);
+        }
+        
+        private void newline() {
+            if (prettyPrint && (out.length() > 0)) {
+                out.append('\n');
+                for (int i = 0; i < elements.size(); i++) {
+                    out.append("   ");
+                }
+            }
+        }
+        
+        private void open(String name, String attribute, String attributeValue) {
+            newline();
+            out.append('<').append(name);
+            if (attribute != null) {
+                out.append(' ').append(attribute).append("=\"");
+                escape(attributeValue);
+                out.append('"');
+            }
+            out.append('>');
+            elements.push(name);
+        }
+        
+        private void close() {
+            String name = elements.pop();
+            newline();
+            out.append("</").append(name).append('>');
+        }
+        
+        private void escape(String v) {
+            for (int i = 0; i < v.length(); i++) {
+                char c = v.charAt(i);
+                switch (c) {
+                    case '&':
+                        out.append("&amp;");
+                        break;
+                    case '<':
+                        out.append("&lt;");
+                        break;
+                    case '>':
+                        out.append("&gt;");
+                        break;
+                    case '"':
+                        out.append("&quot;");
+                        break;
+                    default:
+                        out.append(c);
+                }
+            }
+        }
+        
+        @Override
+        public FhirStreamWriter startResource(String name, String type) {
+            if (name != null) {
+                open(name, null, null);
+            }
+            open(type, "xmlns", NAMESPACE);
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter endResource() {
+            close();
+            // Anything still open is the element holding this resource
+            if (!elements.isEmpty()) {
+                close();
+            }
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter startObject(String name) {
+            open(name, null, null);
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter endObject() {
+            close();
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter startArray(String name) {
+            arrays.push(name);
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter startItem() {
+            open(arrays.peek(), null, null);
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter startExtension(String url) {
+            open(arrays.peek(), "url", url);
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter endItem() {
+            close();
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter endArray() {
+            arrays.pop();
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter value(String name, String v) {
+            if (!isEmpty(v)) {
+                number(name, v);
+            }
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter number(String name, String v) {
+            newline();
+            out.append('<').append(name).append(" value=\"");
+            escape(v);
+            out.append("\"></").append(name).append('>');
+            return this;
+        }
+
+        @Override
+        public FhirStreamWriter values(String name, List<String> v) {
+            for (String s : v) {
+                value(name, s);
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Writes each bundle to a file of its own in the output directory, or to
+ * standard output preceded by its id on a line by itself.
+ * 
+ * @author Damian Murphy
+ */
+public class FileBundleSink 
+        implements BundleSink
+{
+    private final String outputDirectory;
+    private final boolean stdout;
+    private final ParserPool parsers;
+    
+    /**
+     * @param od Output directory
+     * @param s Write to standard output
+     * @param p Parsers, which determine the output format
+     */
+    public FileBundleSink(String od, boolean s, ParserPool p) {
+        outputDirectory = od;
+        stdout = s;
+        parsers = p;
+    }
+    
+    @Override
+    public void write(String id, Bundle b) 
+            throws Exception
+    {
+        FhirHelper.write(id, outputDirectory, b, parsers, stdout);
+    }
+    
+    @Override
+    public void write(String id, byte[] encoded) 
+            throws Exception
+    {
+        FhirHelper.write(id, outputDirectory, encoded, parsers.getFileExtension(), stdout);
+    }
+    
+    @Override
+    public ParserPool getParsers() { return parsers; }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,144 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+/**
+ * Thread-safe parser for HL7v3 "TS" timestamps: YYYY[MM[DD[HH[MM[SS[.U+]]]]]][+|-ZZzz].
+ * Missing trailing components default to the start of the period. Where no timezone
+ * offset is given the system default timezone is used.
+ *
+ * Parsing is done by hand on java.time types, so there is no shared mutable state and
+ * no locking. A small direct-mapped cache holds recently parsed values, since the same
+ * participation times occur many times over in an EMU extract.
+ *
+ * @author Damian Murphy
+ */
+public class HL7v3DateParser {
+
+    private static final int CACHESIZE = 1024;
+    private static final Entry[] cache = new Entry[CACHESIZE];
+
+    /**
+     * Parse the given HL7v3 timestamp.
+     *
+     * @param s Timestamp
+     * @return The Date (a new instance on every call)
+     * @throws ParseException If the timestamp is not valid
+     */
+    public static Date parse(String s)
+            throws ParseException
+    {
+        if (s == null) {
+            throw new ParseException("Null HL7v3 timestamp", 0);
+        }
+        String ts = s.trim();
+        int slot = (ts.hashCode() & 0x7fffffff) % CACHESIZE;
+        // Entries are immutable, so a racing read sees either a whole entry or null
+        Entry e = cache[slot];
+        if ((e == null) || !e.key.contentEquals(ts)) {
+            e = new Entry(ts, toMillis(ts));
+            cache[slot] = e;
+        }
+        return new Date(e.millis);
+    }
+
+    private static long toMillis(String s)
+            throws ParseException
+    {
+        int digits = 0;
+        while ((digits < s.length()) && Character.isDigit(s.charAt(digits)) && (digits < 14)) {
+            digits++;
+        }
+        if ((digits < 4) || ((digits % 2) != 0)) {
+            throw new ParseException("Invalid HL7v3 timestamp: " + s, digits);
+        }
+        int year = number(s, 0, 4);
+        int month = (digits >= 6) ? number(s, 4, 2) : 1;
+        int day = (digits >= 8) ? number(s, 6, 2) : 1;
+        int hour = (digits >= 10) ? number(s, 8, 2) : 0;
+        int minute = (digits >= 12) ? number(s, 10, 2) : 0;
+        int second = (digits >= 14) ? number(s, 12, 2) : 0;
+        int nanos = 0;
+        int p = digits;
+        if ((digits == 14) && (p < s.length()) && (s.charAt(p) == '.')) {
+            p++;
+            int scale = 100000000;
+            int start = p;
+            while ((p < s.length()) && Character.isDigit(s.charAt(p))) {
+                nanos += (s.charAt(p) - '0') * scale;
+                scale /= 10;
+                p++;
+            }
+            if (p == start) {
+                throw new ParseException("Invalid HL7v3 timestamp fraction: " + s, p);
+            }
+        }
+        ZoneId zone = null;
+        if (p < s.length()) {
+            char sign = s.charAt(p);
+            if (((sign != '+') && (sign != '-')) || (s.length() - p != 5)) {
+                throw new ParseException("Invalid HL7v3 timestamp offset: " + s, p);
+            }
+            int oh = number(s, p + 1, 2);
+            int om = number(s, p + 3, 2);
+            try {
+                zone = (sign == '+') ? ZoneOffset.ofHoursMinutes(oh, om) : ZoneOffset.ofHoursMinutes(-oh, -om);
+            }
+            catch (DateTimeException ex) {
+                throw new ParseException("Invalid HL7v3 timestamp offset: " + s, p);
+            }
+        } else {
+            zone = ZoneId.systemDefault();
+        }
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second, nanos).atZone(zone).toInstant().toEpochMilli();
+        }
+        catch (DateTimeException ex) {
+            throw new ParseException("Invalid HL7v3 timestamp: " + s + " : " + ex.getMessage(), 0);
+        }
+    }
+
+    private static int number(String s, int start, int length)
+            throws ParseException
+    {
+        int n = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = s.charAt(i);
+            if ((c < '0') || (c > '9')) {
+                throw new ParseException("Invalid HL7v3 timestamp: " + s, i);
+            }
+            n = (n * 10) + (c - '0');
+        }
+        return n;
+    }
+
+    private static class Entry {
+        private final String key;
+        private final long millis;
+
+        private Entry(String k, long m) {
+            key = k;
+            millis = m;
+        }
+    }
+}
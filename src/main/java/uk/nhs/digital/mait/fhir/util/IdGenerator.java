@@ -0,0 +1,163 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Strategy for making the lower-case UUIDs used as resource and bundle ids (see
+ * FhirHelper.makeId()).
+ * 
+ * "secure" uses UUID.randomUUID(), which draws on the shared SecureRandom. "fast"
+ * makes random version 4 UUIDs from ThreadLocalRandom, so threads do not contend;
+ * these are unique in practice but not unpredictable. "seeded" is deterministic: the
+ * ids made on a thread after startBundle() depend only on the seed, the key given
+ * and how many ids have been made since, so a run with the same seed and input
+ * gives the same ids whatever the thread scheduling, and outputs can be diffed.
+ * 
+ * @author Damian Murphy
+ */
+public abstract class IdGenerator {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int UUIDLENGTH = 36;
+    
+    /**
+     * @return A new id
+     */
+    public abstract String makeId();
+    
+    /**
+     * Called by the calling thread before it makes the ids for a bundle. Ignored
+     * other than by seeded generators.
+     * 
+     * @param key Identifies the bundle, for example the prescription id
+     */
+    public void startBundle(String key) {}
+    
+    public static IdGenerator secure() { return new Secure(); }
+    public static IdGenerator fast() { return new Fast(); }
+    
+    /**
+     * @param seed Seed. Runs with the same seed make the same ids.
+     * @return A deterministic generator
+     */
+    public static IdGenerator seeded(long seed) { return new Seeded(seed); }
+    
+    /**
+     * Get a generator by name.
+     * 
+     * @param name "secure", "fast" or "seeded"
+     * @param seed Seed, for "seeded"
+     * @return The generator
+     * @throws IllegalArgumentException If the name is not known
+     */
+    public static IdGenerator forName(String name, long seed) {
+        switch (name.trim().toLowerCase()) {
+            case "secure":
+                return secure();
+            case "fast":
+                return fast();
+            case "seeded":
+                return seeded(seed);
+            default:
+                throw new IllegalArgumentException("Unknown id generator: " + name);
+        }
+    }
+    
+    /**
+     * Format the given bits as a lower-case version 4 (random) UUID.
+     * 
+     * @param msb Most significant 64 bits. The version bits are overwritten.
+     * @param lsb Least significant 64 bits. The variant bits are overwritten.
+     * @return The UUID string
+     */
+    protected static String format(long msb, long lsb) {
+        long m = (msb & 0xffffffffffff0fffL) | 0x0000000000004000L;
+        long l = (lsb & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        byte[] b = new byte[UUIDLENGTH];
+        hex(m >>> 32, b, 0, 8);
+        b[8] = '-';
+        hex(m >>> 16, b, 9, 4);
+        b[13] = '-';
+        hex(m, b, 14, 4);
+        b[18] = '-';
+        hex(l >>> 48, b, 19, 4);
+        b[23] = '-';
+        hex(l, b, 24, 12);
+        return new String(b, StandardCharsets.ISO_8859_1);
+    }
+    
+    private static void hex(long v, byte[] b, int offset, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            b[i] = HEX[(int)(v & 0xf)];
+            v >>>= 4;
+        }
+    }
+    
+    private static class Secure
+            extends IdGenerator
+    {
+        @Override
+        public String makeId() { return UUID.randomUUID().toString(); }
+    }
+    
+    private static class Fast
+            extends IdGenerator
+    {
+        @Override
+        public String makeId() {
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            return format(r.nextLong(), r.nextLong());
+        }
+    }
+    
+    private static class Seeded
+            extends IdGenerator
+    {
+        private static final long FNVOFFSET = 0xcbf29ce484222325L;
+        private static final long FNVPRIME = 0x100000001b3L;
+        
+        private final long seed;
+        private final ThreadLocal<SplittableRandom> current;
+        
+        Seeded(long s) {
+            seed = s;
+            // Ids made outside a bundle still come from the seed, but then depend on
+            // which thread makes them
+            current = ThreadLocal.withInitial(() -> new SplittableRandom(seed));
+        }
+        
+        @Override
+        public void startBundle(String key) {
+            // 64-bit FNV-1a, so that different keys are very unlikely to share ids
+            long h = FNVOFFSET;
+            for (int i = 0; i < key.length(); i++) {
+                h = (h ^ key.charAt(i)) * FNVPRIME;
+            }
+            current.set(new SplittableRandom(seed ^ h));
+        }
+
+        @Override
+        public String makeId() {
+            SplittableRandom r = current.get();
+            return format(r.nextLong(), r.nextLong());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Writes bundles as NDJSON (the FHIR Bulk Data format): one compact JSON bundle per
+ * line. When writing to a directory the output is split over numbered files
+ * (Bundle-000001.ndjson, Bundle-000002.ndjson, ...), with a new file started when the
+ * current one reaches a given number of records or bytes.
+ * 
+ * @author Damian Murphy
+ */
+public class NdjsonBundleSink 
+        implements BundleSink
+{
+    private final ParserPool parsers;
+    private final RollingOutput output;
+    
+    /**
+     * @param od Output directory
+     * @param s Write to standard output (no file roll-over)
+     * @param p Parsers. These must be JSON parsers without pretty-printing
+     * @param mr Maximum records per file, or zero for no limit
+     * @param mb Maximum bytes per file, or zero for no limit
+     */
+    public NdjsonBundleSink(String od, boolean s, ParserPool p, long mr, long mb) {
+        if (p.isXml() || p.isPrettyPrint()) {
+            throw new IllegalArgumentException("NDJSON output needs compact JSON parsers");
+        }
+        parsers = p;
+        output = new RollingOutput(od, s, "Bundle", ".ndjson", false, mr, mb);
+    }
+    
+    @Override
+    public void write(String id, Bundle b) 
+            throws Exception
+    {
+        // Encode outside the lock so that callers only queue for the write itself
+        write(id, parsers.encode(b));
+    }
+    
+    @Override
+    public void write(String id, byte[] encoded) 
+            throws Exception
+    {
+        long t = PipelineMetrics.start();
+        synchronized (this) {
+            output.write(encoded);
+        }
+        PipelineMetrics.stop(PipelineMetrics.Stage.WRITE, t);
+        PipelineMetrics.bytesWritten(encoded.length + 1);
+    }
+
+    @Override
+    public ParserPool getParsers() { return parsers; }
+
+    @Override
+    public synchronized void close() 
+            throws Exception
+    {
+        output.close();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Holds one configured HAPI parser per thread, for a given FhirContext, format and
+ * pretty-print setting. HAPI parsers are not thread-safe but are reusable, so this
+ * avoids making and configuring a new one for every resource written.
+ *
+ * @author Damian Murphy
+ */
+public class ParserPool {
+
+    // Buffer for encoding to a caller's stream, so that it gets a few large writes
+    private static final int STREAMBUFFER = 65536;
+    // Buffer and initial array size for encoding to a byte array. Memory needs no
+    // large writes, and this is allocated for every bundle, so it is about the size
+    // of a typical bundle.
+    private static final int ARRAYBUFFER = 8192;
+
+    private final FhirContext context;
+    private final boolean xml;
+    private final boolean prettyPrint;
+    private final ThreadLocal<IParser> parsers;
+
+    /**
+     * @param ctx FhirContext
+     * @param x Make XML parsers (JSON if false)
+     * @param pp Pretty print
+     */
+    public ParserPool(FhirContext ctx, boolean x, boolean pp) {
+        context = ctx;
+        xml = x;
+        prettyPrint = pp;
+        parsers = ThreadLocal.withInitial(() -> {
+            IParser p = xml ? context.newXmlParser() : context.newJsonParser();
+            p.setPrettyPrint(prettyPrint);
+            return p;
+        });
+    }
+
+    public FhirContext getContext() { return context; }
+    public boolean isXml() { return xml; }
+    public boolean isPrettyPrint() { return prettyPrint; }
+
+    /**
+     * @return File name extension (including the leading ".") for the format
+     */
+    public String getFileExtension() { return xml ? ".xml" : ".json"; }
+
+    /**
+     * @return The parser for the calling thread
+     */
+    public IParser get() { return parsers.get(); }
+
+    /**
+     * Encode the resource as UTF-8 directly to the given stream, through a buffer.
+     * The stream is flushed but not closed.
+     *
+     * @param r The resource
+     * @param os Output stream
+     * @throws IOException If the write fails
+     */
+    public void encode(IBaseResource r, OutputStream os)
+            throws IOException
+    {
+        encode(r, os, STREAMBUFFER);
+    }
+    
+    private void encode(IBaseResource r, OutputStream os, int buffer)
+            throws IOException
+    {
+        long t = PipelineMetrics.start();
+        Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), buffer);
+        parsers.get().encodeResourceToWriter(r, w);
+        w.flush();
+        PipelineMetrics.stop(PipelineMetrics.Stage.ENCODE, t);
+    }
+    
+    /**
+     * Encode the resource as UTF-8 into a byte array, for outputs which need the
+     * size up front or hand the data on to another thread.
+     * 
+     * @param r The resource
+     * @return The encoded resource
+     * @throws IOException If encoding fails
+     */
+    public byte[] encode(IBaseResource r)
+            throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(ARRAYBUFFER);
+        encode(r, bos, ARRAYBUFFER);
+        return bos.toByteArray();
+    }
+}
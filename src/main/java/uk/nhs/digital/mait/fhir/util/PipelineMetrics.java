@@ -0,0 +1,292 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and per-stage latency histograms for the EMU-to-FHIR pipeline. Collection
+ * is off until enable() is called, and when off the timing calls do not read the
+ * clock. Everything here is lock-free and safe to call from any thread.
+ * 
+ * Typical use around a stage:
+ * 
+ * long t = PipelineMetrics.start();
+ * ... do the work ...
+ * PipelineMetrics.stop(PipelineMetrics.Stage.BUILD, t);
+ * 
+ * @author Damian Murphy
+ */
+public class PipelineMetrics {
+
+    /**
+     * Pipeline stages. Where a bundle is encoded straight to a file, the file writes
+     * happen as the encoder's buffer fills, so they cannot be taken out of ENCODE:
+     * WRITE is the time spent in those writes, which is also included in ENCODE.
+     */
+    public enum Stage { READ, SUBSTITUTE, SPLIT, BUILD, ENCODE, WRITE }
+    
+    private static volatile boolean enabled = false;
+    private static long startTime = System.nanoTime();
+    
+    private static final Histogram[] stages = new Histogram[Stage.values().length];
+    private static final LongAdder rowsRead = new LongAdder();
+    private static final LongAdder bundlesBuilt = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+    private static final ConcurrentHashMap<String,LongAdder> failures = new ConcurrentHashMap<>();
+    
+    private static ScheduledExecutorService reporter = null;
+    
+    static {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+    }
+    
+    public static void enable() {
+        startTime = System.nanoTime();
+        enabled = true;
+    }
+    
+    public static boolean isEnabled() { return enabled; }
+    
+    /**
+     * @return The start time for a stage, or zero if metrics are not enabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+    
+    /**
+     * Record the time taken by a stage.
+     * 
+     * @param s The stage
+     * @param t The value returned by start()
+     */
+    public static void stop(Stage s, long t) {
+        if (enabled && (t != 0)) {
+            stages[s.ordinal()].record(System.nanoTime() - t);
+        }
+    }
+    
+    /**
+     * Record a time for a stage which the caller has measured itself, for example
+     * added up over several calls.
+     * 
+     * @param s The stage
+     * @param nanos The time taken, in nanoseconds
+     */
+    public static void record(Stage s, long nanos) {
+        if (enabled) {
+            stages[s.ordinal()].record(nanos);
+        }
+    }
+    
+    public static void rowRead() {
+        if (enabled) {
+            rowsRead.increment();
+        }
+    }
+    
+    public static void bundleBuilt() {
+        if (enabled) {
+            bundlesBuilt.increment();
+        }
+    }
+    
+    public static void bytesWritten(long n) {
+        if (enabled) {
+            bytesWritten.add(n);
+        }
+    }
+    
+    public static void failure(Throwable t) {
+        if (enabled) {
+            failures.computeIfAbsent(t.getClass().getName(), (k) -> new LongAdder()).increment();
+        }
+    }
+    
+    /**
+     * Print a progress line to the given stream at a fixed interval, from a daemon thread.
+     * 
+     * @param seconds Interval
+     * @param out Stream
+     */
+    public static synchronized void startReporting(long seconds, PrintStream out) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> out.println(progress()), seconds, seconds, TimeUnit.SECONDS);
+    }
+    
+    public static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+    
+    /**
+     * @return One-line progress report
+     */
+    public static String progress() {
+        double elapsed = elapsedSeconds();
+        long b = bundlesBuilt.sum();
+        return String.format("%.1fs: rows read %d, bundles built %d (%.1f/s), bytes written %d, failures %d", 
+                elapsed, rowsRead.sum(), b, (elapsed > 0) ? b / elapsed : 0.0, bytesWritten.sum(), failureCount());
+    }
+    
+    /**
+     * @return Multi-line summary with per-stage latencies
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder(progress());
+        sb.append(System.lineSeparator());
+        sb.append(String.format("%-10s %10s %12s %10s %10s %10s %10s%n", "stage", "count", "total ms", "mean us", 
+                "p50 us", "p99 us", "max us"));
+        for (Stage s : Stage.values()) {
+            Histogram h = stages[s.ordinal()];
+            long c = h.count.sum();
+            if (c == 0) {
+                continue;
+            }
+            sb.append(String.format("%-10s %10d %12.1f %10.1f %10.1f %10.1f %10.1f%n", s.name(), c, h.total.sum() / 1e6, 
+                    (h.total.sum() / (double)c) / 1e3, h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.max.get() / 1e3));
+        }
+        for (Map.Entry<String,Long> f : failureCounts().entrySet()) {
+            sb.append("failed: ").append(f.getKey()).append(" ").append(f.getValue()).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * @return All figures as a JSON object. Latencies are in nanoseconds.
+     */
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"elapsedSeconds\":").append(elapsedSeconds());
+        sb.append(",\"rowsRead\":").append(rowsRead.sum());
+        sb.append(",\"bundlesBuilt\":").append(bundlesBuilt.sum());
+        sb.append(",\"bytesWritten\":").append(bytesWritten.sum());
+        sb.append(",\"failures\":{");
+        boolean first = true;
+        for (Map.Entry<String,Long> f : failureCounts().entrySet()) {
+            if (!first) {
+                sb.append(",");
+            }
+            first = false;
+            sb.append("\"").append(f.getKey()).append("\":").append(f.getValue());
+        }
+        sb.append("},\"stages\":{");
+        first = true;
+        for (Stage s : Stage.values()) {
+            Histogram h = stages[s.ordinal()];
+            if (!first) {
+                sb.append(",");
+            }
+            first = false;
+            sb.append("\"").append(s.name()).append("\":{\"count\":").append(h.count.sum());
+            sb.append(",\"totalNanos\":").append(h.total.sum());
+            sb.append(",\"maxNanos\":").append(h.max.get());
+            sb.append(",\"p50Nanos\":").append(h.percentile(0.5));
+            sb.append(",\"p99Nanos\":").append(h.percentile(0.99));
+            sb.append(",\"buckets\":[");
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(h.buckets.get(i));
+            }
+            sb.append("]}");
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+    
+    private static double elapsedSeconds() {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+    
+    private static long failureCount() {
+        long n = 0;
+        for (LongAdder a : failures.values()) {
+            n += a.sum();
+        }
+        return n;
+    }
+    
+    private static TreeMap<String,Long> failureCounts() {
+        TreeMap<String,Long> m = new TreeMap<>();
+        for (Map.Entry<String,LongAdder> f : failures.entrySet()) {
+            m.put(f.getKey(), f.getValue().sum());
+        }
+        return m;
+    }
+    
+    /**
+     * Latency histogram with power-of-two nanosecond buckets: bucket n counts
+     * values in [2^(n-1), 2^n).
+     */
+    private static class Histogram {
+        private static final int BUCKETS = 64;
+        
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        
+        private void record(long nanos) {
+            long n = Math.max(nanos, 0);
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(n));
+            count.increment();
+            total.add(n);
+            max.accumulate(n);
+        }
+        
+        /**
+         * @return Upper bound of the bucket containing the given fraction of values
+         */
+        private long percentile(double p) {
+            long c = count.sum();
+            if (c == 0) {
+                return 0;
+            }
+            long target = (long)Math.ceil(c * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return (i == 0) ? 0 : Math.min(1L << Math.min(i, 62), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+}
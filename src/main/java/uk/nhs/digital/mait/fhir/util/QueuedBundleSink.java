@@ -0,0 +1,193 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Base for sinks which separate encoding from output. Callers encode each bundle
+ * on their own thread and hand the bytes to a bounded queue, which is drained by
+ * one or more background threads in batches. The queue bound provides back-pressure:
+ * write() blocks when the output stage falls behind.
+ * 
+ * If the output stage fails, the failure is re-thrown from subsequent calls to
+ * write() and from close(). Anything still queued is discarded.
+ * 
+ * @author Damian Murphy
+ */
+public abstract class QueuedBundleSink 
+        implements BundleSink
+{
+    /**
+     * An encoded bundle, waiting to be written.
+     */
+    protected static class Encoded {
+        protected final String id;
+        protected final byte[] data;
+        
+        protected Encoded(String i, byte[] d) {
+            id = i;
+            data = d;
+        }
+    }
+    
+    private static final Encoded END = new Encoded(null, null);
+    
+    protected final ParserPool parsers;
+    private final ArrayBlockingQueue<Encoded> queue;
+    private final Thread[] workers;
+    private final int batchSize;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private boolean closed = false;
+    
+    /**
+     * @param p Parsers for encoding
+     * @param depth Maximum number of encoded bundles waiting to be written
+     * @param threads Number of output threads
+     * @param batch Maximum number of bundles given to each call to consume()
+     * @param name Name for the output threads
+     */
+    protected QueuedBundleSink(ParserPool p, int depth, int threads, int batch, String name) {
+        parsers = p;
+        queue = new ArrayBlockingQueue<>(Math.max(depth, 1));
+        batchSize = Math.max(batch, 1);
+        workers = new Thread[Math.max(threads, 1)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::drain, name + "-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+    
+    /**
+     * Start the output threads. Sub-classes call this at the end of their constructor,
+     * once they are ready for consume() to be called.
+     */
+    protected final void start() {
+        for (Thread t : workers) {
+            t.start();
+        }
+    }
+    
+    /**
+     * Write a batch of encoded bundles. Called on an output thread; with more than
+     * one output thread this may be called concurrently.
+     * 
+     * @param batch Bundles to write
+     * @throws Exception If the output fails
+     */
+    protected abstract void consume(ArrayList<Encoded> batch) throws Exception;
+    
+    /**
+     * Called once from close() after all the output threads have finished, and before
+     * any output failure is reported.
+     * 
+     * @throws Exception If the output cannot be completed
+     */
+    protected void finish() throws Exception {}
+    
+    @Override
+    public void write(String id, Bundle b)
+            throws Exception
+    {
+        checkFailure();
+        queue.put(new Encoded(id, parsers.encode(b)));
+    }
+    
+    @Override
+    public void write(String id, byte[] encoded)
+            throws Exception
+    {
+        checkFailure();
+        queue.put(new Encoded(id, encoded));
+    }
+    
+    @Override
+    public ParserPool getParsers() { return parsers; }
+
+    @Override
+    public synchronized void close()
+            throws Exception
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Thread t : workers) {
+            queue.put(END);
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        try {
+            finish();
+        }
+        catch (Exception e) {
+            failure.compareAndSet(null, e);
+        }
+        checkFailure();
+    }
+    
+    private void checkFailure()
+            throws Exception
+    {
+        Exception e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+    
+    private void drain() {
+        ArrayList<Encoded> batch = new ArrayList<>(batchSize);
+        boolean running = true;
+        try {
+            while (running) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                int ends = 0;
+                while (batch.remove(END)) {
+                    ends++;
+                }
+                if (ends > 0) {
+                    running = false;
+                    // Each output thread must see exactly one end marker
+                    for (int i = 1; i < ends; i++) {
+                        queue.put(END);
+                    }
+                }
+                if (!batch.isEmpty() && (failure.get() == null)) {
+                    try {
+                        long t = PipelineMetrics.start();
+                        consume(batch);
+                        PipelineMetrics.stop(PipelineMetrics.Stage.WRITE, t);
+                        for (Encoded e : batch) {
+                            PipelineMetrics.bytesWritten(e.data.length);
+                        }
+                    }
+                    catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                batch.clear();
+            }
+        }
+        catch (InterruptedException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+}
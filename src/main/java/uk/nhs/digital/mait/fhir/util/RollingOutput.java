@@ -0,0 +1,135 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Newline-terminated records written to a numbered series of files, optionally
+ * gzip compressed, moving on to the next file when the current one reaches a
+ * given number of records or (uncompressed) bytes. Writing to standard output
+ * ignores the limits. Not thread-safe.
+ * 
+ * @author Damian Murphy
+ */
+class RollingOutput {
+    
+    private static final int BUFFERSIZE = 1048576;
+    
+    private final String outputDirectory;
+    private final boolean stdout;
+    private final String prefix;
+    private final String suffix;
+    private final boolean gzip;
+    private final long maxRecords;
+    private final long maxBytes;
+
+    private OutputStream current = null;
+    private int fileNumber = 0;
+    private long records = 0;
+    private long bytes = 0;
+    
+    /**
+     * @param od Output directory
+     * @param s Write to standard output
+     * @param p File name prefix
+     * @param x File name suffix
+     * @param z Compress with gzip
+     * @param mr Maximum records per file, or zero for no limit
+     * @param mb Maximum uncompressed bytes per file, or zero for no limit
+     */
+    RollingOutput(String od, boolean s, String p, String x, boolean z, long mr, long mb) {
+        outputDirectory = od;
+        stdout = s;
+        prefix = p;
+        suffix = x;
+        gzip = z;
+        maxRecords = mr;
+        maxBytes = mb;
+    }
+    
+    void write(byte[] record) 
+            throws IOException
+    {
+        if (!stdout && needRollOver(record.length + 1)) {
+            closeCurrent();
+        }
+        if (current == null) {
+            open();
+        }
+        current.write(record);
+        current.write('\n');
+        records++;
+        bytes += record.length + 1;
+    }
+    
+    void close()
+            throws IOException
+    {
+        closeCurrent();
+    }
+    
+    private void open()
+            throws IOException
+    {
+        OutputStream os = null;
+        if (stdout) {
+            // Don't let closing the compressor close System.out
+            os = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException { System.out.write(b); }
+                @Override
+                public void write(byte[] b, int o, int l) throws IOException { System.out.write(b, o, l); }
+                @Override
+                public void flush() throws IOException { System.out.flush(); }
+            };
+        } else {
+            fileNumber++;
+            os = new FileOutputStream(new File(outputDirectory, String.format("%s-%06d%s", prefix, fileNumber, suffix)));
+        }
+        if (gzip) {
+            current = new GZIPOutputStream(os, BUFFERSIZE);
+        } else {
+            current = new BufferedOutputStream(os, BUFFERSIZE);
+        }
+        records = 0;
+        bytes = 0;
+    }
+    
+    private boolean needRollOver(int length) {
+        if ((current == null) || (records == 0)) {
+            return false;
+        }
+        if ((maxRecords > 0) && (records >= maxRecords)) {
+            return true;
+        }
+        return (maxBytes > 0) && (bytes + length > maxBytes);
+    }
+    
+    private void closeCurrent() 
+            throws IOException
+    {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ Copyright 2020  NHS Digital <damian.murphy@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package uk.nhs.digital.mait.fhir.util;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Writes bundles to a caller-supplied stream, for example an HTTP response. With
+ * compact JSON parsers the output is NDJSON, one bundle per line; otherwise each
+ * bundle is preceded by its id on a line by itself, as for standard output, and
+ * followed by a line break. The stream is flushed after each bundle, so a reader
+ * sees it as soon as it is made, but is not closed.
+ * 
+ * @author Damian Murphy
+ */
+public class StreamBundleSink 
+        implements BundleSink
+{
+    private static final byte[] NEWLINE = {'\n'};
+    
+    private final OutputStream output;
+    private final ParserPool parsers;
+    private final boolean ndjson;
+    private long count = 0;
+    
+    /**
+     * @param os The stream
+     * @param p Parsers, which determine the output format
+     */
+    public StreamBundleSink(OutputStream os, ParserPool p) {
+        output = os;
+        parsers = p;
+        ndjson = !p.isXml() && !p.isPrettyPrint();
+    }
+    
+    /**
+     * @return Number of bundles written so far
+     */
+    public synchronized long getCount() { return count; }
+    
+    @Override
+    public void write(String id, Bundle b) 
+            throws Exception
+    {
+        write(id, parsers.encode(b));
+    }
+    
+    @Override
+    public synchronized void write(String id, byte[] encoded) 
+            throws Exception
+    {
+        long t = PipelineMetrics.start();
+        if (!ndjson) {
+            output.write((id + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        output.write(encoded);
+        // Pretty-printed bundles do not end with one, and the next id must start a line
+        output.write(NEWLINE);
+        output.flush();
+        count++;
+        PipelineMetrics.stop(PipelineMetrics.Stage.WRITE, t);
+        PipelineMetrics.bytesWritten(encoded.length);
+    }
+
+    @Override
+    public ParserPool getParsers() { return parsers; }
+
+    @Override
+    public void close() {}
+}
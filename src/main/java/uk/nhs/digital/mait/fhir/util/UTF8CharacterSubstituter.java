@@ -15,7 +15,7 @@
  */
 package uk.nhs.digital.mait.fhir.util;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Support for tagged "dodgy character" tests.
@@ -85,7 +85,11 @@ public class UTF8CharacterSubstituter {
         "__DASH__", "2013",
         "__CURVED_APOSTROPHE__", "055a"};
     
-    private static final HashMap<String,String> utfSubstitutions = new HashMap<>();
+    private static final String SENTINEL = "__";
+    
+    // All the tags start with the sentinel, so the matcher is a trie of the tags
+    // which is only consulted at positions where the sentinel occurs.
+    private static final TrieNode tags = new TrieNode();
     private static Exception bootException = null;
     
     static {
@@ -94,7 +98,7 @@ public class UTF8CharacterSubstituter {
                 String tag = ENCODINGS[i];
                 String u = ENCODINGS[i + 1];
                 String h = hexToUnicodePoint(u);
-                utfSubstitutions.put(tag, h);
+                tags.add(tag, h);
             }
         }
         catch (Exception e) {
@@ -104,20 +108,44 @@ public class UTF8CharacterSubstituter {
     
     public static Exception getBootException() { return bootException; }
 
+    /**
+     * Replace any tags in the input with the characters they represent, in a single
+     * pass. Returns the input unchanged, with no copy, if it contains no tags.
+     * 
+     * @param in Input string
+     * @return The input with tags substituted
+     * @throws Exception If the substitution table failed to initialise
+     */
     public static String doSubstitutions(String in) 
             throws Exception
     {
         if (bootException != null) {
             throw bootException;
         }
-        StringBuilder sb = new StringBuilder(in);
-        for (String s : utfSubstitutions.keySet()) {
-            @SuppressWarnings("UnusedAssignment")
-            int start = 0;
-            while ((start = sb.indexOf(s)) != -1) {
-                sb.replace(start, start + s.length(), utfSubstitutions.get(s));
+        int start = in.indexOf(SENTINEL);
+        if (start == -1) {
+            return in;
+        }
+        StringBuilder sb = null;
+        int copied = 0;
+        while (start != -1) {
+            TrieNode match = tags.longestMatch(in, start);
+            if (match == null) {
+                start = in.indexOf(SENTINEL, start + 1);
+            } else {
+                if (sb == null) {
+                    sb = new StringBuilder(in.length());
+                }
+                sb.append(in, copied, start);
+                sb.append(match.replacement);
+                copied = start + match.depth;
+                start = in.indexOf(SENTINEL, copied);
             }
-        }        
+        }
+        if (sb == null) {
+            return in;
+        }
+        sb.append(in, copied, in.length());
         return sb.toString();
     }
     
@@ -129,4 +157,60 @@ public class UTF8CharacterSubstituter {
         return new String(cp, 0, 1);
     }
     
+    /**
+     * Character trie node. Tags are short and the fan-out at each node is small,
+     * so children are held in parallel arrays and searched linearly.
+     */
+    private static class TrieNode {
+        private char[] labels = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        private String replacement = null;
+        private int depth = 0;
+        
+        private void add(String tag, String r) {
+            TrieNode n = this;
+            for (int i = 0; i < tag.length(); i++) {
+                TrieNode c = n.child(tag.charAt(i));
+                if (c == null) {
+                    int l = n.labels.length;
+                    n.labels = Arrays.copyOf(n.labels, l + 1);
+                    n.children = Arrays.copyOf(n.children, l + 1);
+                    c = new TrieNode();
+                    c.depth = i + 1;
+                    n.labels[l] = tag.charAt(i);
+                    n.children[l] = c;
+                }
+                n = c;
+            }
+            n.replacement = r;
+        }
+        
+        private TrieNode child(char ch) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == ch) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * @return The node for the longest tag starting at the given position, or
+         * null if there is none.
+         */
+        private TrieNode longestMatch(String s, int from) {
+            TrieNode n = this;
+            TrieNode found = null;
+            for (int i = from; i < s.length(); i++) {
+                n = n.child(s.charAt(i));
+                if (n == null) {
+                    break;
+                }
+                if (n.replacement != null) {
+                    found = n;
+                }
+            }
+            return found;
+        }
+    }
 }